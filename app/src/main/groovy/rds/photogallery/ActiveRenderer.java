@@ -0,0 +1,217 @@
+package rds.photogallery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws all the panels of a frame from a single thread, straight to the frame's buffer strategy, instead of leaving
+ * each panel to repaint itself through Swing. With a big grid of panels, Swing pushes every repaint through the event
+ * thread one panel at a time, which falls behind and makes panels change unevenly. Here, the panels are only regions of
+ * the layout. Asking one to repaint just marks the frame as needing a new picture, and the render thread composes every
+ * panel into the back buffer at once and flips it, at most once per display refresh.
+ *
+ * This only makes sense when Swing has nothing else to draw in the frame, so it's only used when the frame's controls
+ * are hidden.
+ *
+ * Swing components are only safe to touch on the event thread, so the render thread never asks them where they are.
+ * Whenever the panels are laid out, the event thread takes a snapshot of the frame's size and where each panel is, and
+ * the render thread draws from the latest one.
+ */
+public class ActiveRenderer {
+    private static final Logger log = LoggerFactory.getLogger(ActiveRenderer.class);
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    private final String name;
+    private final JFrame frame;
+    private final List<PhotoPanel> panels;
+    private final Object lock = new Object();
+    private boolean renderRequested;
+    private volatile boolean running;
+    private volatile Layout layout = new Layout(new Dimension(), null, Collections.emptyList());
+    private Thread renderThread;
+
+    /**
+     * Where everything in the frame is, as of the last time the panels were laid out.
+     */
+    static class Layout {
+        final Dimension frameSize;
+        final GraphicsConfiguration configuration;
+        final List<Region> regions;
+
+        Layout(Dimension frameSize, GraphicsConfiguration configuration, List<Region> regions) {
+            this.frameSize = frameSize;
+            this.configuration = configuration;
+            this.regions = regions;
+        }
+    }
+
+    /**
+     * A panel and the part of the frame it covers.
+     */
+    static class Region {
+        final PhotoPanel panel;
+        final Rectangle bounds;
+
+        Region(PhotoPanel panel, Rectangle bounds) {
+            this.panel = panel;
+            this.bounds = bounds;
+        }
+    }
+
+    public ActiveRenderer(String name, JFrame frame, List<PhotoPanel> panels) {
+        this.name = name;
+        this.frame = frame;
+        this.panels = panels;
+    }
+
+    /**
+     * Sets up the frame's buffers and starts rendering. The frame has to be showing, and this has to be called on the
+     * event thread.
+     */
+    public void start() {
+        BufferCapabilities flipping = new BufferCapabilities(
+                new ImageCapabilities(true), new ImageCapabilities(true), BufferCapabilities.FlipContents.UNDEFINED);
+        try {
+            frame.createBufferStrategy(2, flipping);
+        } catch (AWTException e) {
+            log.info("Page flipping isn't available for {}, so falling back to the best buffering there is", name);
+            frame.createBufferStrategy(2);
+        }
+        running = true;
+        layout = takeLayout();
+        final long frameNanos = TimeUnit.SECONDS.toNanos(1) / refreshRate();
+        renderThread = new Thread(() -> renderLoop(frameNanos), name + " renderer");
+        renderThread.setDaemon(true);
+        renderThread.start();
+        requestRender();
+    }
+
+    /**
+     * Stops rendering and hands the panels back to Swing, unless they've already been given to another renderer.
+     */
+    public void stop() {
+        running = false;
+        if (renderThread != null) {
+            renderThread.interrupt();
+        }
+        for (PhotoPanel panel : panels) {
+            panel.releaseActiveRenderer(this);
+        }
+    }
+
+    /**
+     * Asks for the frame to be drawn again. Any number of requests before the next frame are all answered by it.
+     */
+    public void requestRender() {
+        synchronized (lock) {
+            renderRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes a new snapshot of where the panels are, and draws them there. This has to be called on the event thread,
+     * which panels do whenever they're laid out.
+     */
+    public void layoutChanged() {
+        layout = takeLayout();
+        requestRender();
+    }
+
+    private Layout takeLayout() {
+        final List<Region> regions = new ArrayList<>();
+        for (PhotoPanel panel : panels) {
+            if (panel.isShowing() && panel.getWidth() > 0 && panel.getHeight() > 0) {
+                Point location = SwingUtilities.convertPoint(panel, 0, 0, frame);
+                regions.add(new Region(panel, new Rectangle(location, panel.getSize())));
+            }
+        }
+        return new Layout(frame.getSize(), frame.getGraphicsConfiguration(), regions);
+    }
+
+    private void renderLoop(long frameNanos) {
+        try {
+            while (running) {
+                synchronized (lock) {
+                    while (!renderRequested) {
+                        lock.wait();
+                    }
+                    renderRequested = false;
+                }
+                long started = System.nanoTime();
+                try {
+                    App.metrics().time("active render frame", this::renderFrame);
+                } catch (RuntimeException e) {
+                    if (!running) {
+                        // The buffers went away because the frame was disposed out from under us
+                        return;
+                    }
+                    // A frame that didn't get drawn is better than a frame that's never drawn again
+                    log.warn("Failed to render a frame of {}", name, e);
+                }
+                // Anything that asked for a render in the meantime waits for the next refresh, so a burst of changes
+                // is drawn once instead of many times over
+                long remaining = frameNanos - (System.nanoTime() - started);
+                if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void renderFrame() {
+        final BufferStrategy strategy = frame.getBufferStrategy();
+        if (strategy == null) {
+            return;
+        }
+        final Layout current = layout;
+        // The buffers can be lost at any time, like with volatile images, so this is the usual loop of drawing until
+        // what's drawn sticks
+        do {
+            do {
+                Graphics2D graphics = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    compose(graphics, current);
+                } finally {
+                    graphics.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    /**
+     * Draws every panel of the layout into its region, over a black background. One panel failing to draw doesn't stop
+     * the rest from being drawn.
+     */
+    static void compose(Graphics2D graphics, Layout layout) {
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, layout.frameSize.width, layout.frameSize.height);
+        for (Region region : layout.regions) {
+            final Rectangle bounds = region.bounds;
+            Graphics panelGraphics = graphics.create(bounds.x, bounds.y, bounds.width, bounds.height);
+            try {
+                region.panel.render(panelGraphics, bounds.getSize(), layout.configuration);
+            } catch (RuntimeException e) {
+                log.warn("Failed to render {}", region.panel, e);
+            } finally {
+                panelGraphics.dispose();
+            }
+        }
+    }
+
+    private int refreshRate() {
+        int refreshRate = frame.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        return refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : refreshRate;
+    }
+}
@@ -0,0 +1,174 @@
+package rds.photogallery;
+
+import org.imgscalr.Scalr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes how hard the controller pushes, going by how long photos are actually taking to get on screen. It keeps a
+ * running average of the delivery time, the same thing that's recorded as total_photo_delivery_time, and of the time
+ * spent in the final resize, and every few deliveries it makes one adjustment to hold the delivery time near a target.
+ *
+ * When deliveries are too slow, it first gives up resize quality, as long as resizing is a big enough part of the time
+ * for that to help. After that, it backs off on speculative work by prefetching less, and finally it changes photos
+ * less often. When deliveries are comfortably fast, it undoes those in the opposite order, and once everything is back
+ * where it started, it uses the spare time to prefetch more. Photos that were already in memory when they were
+ * assigned, like prefetched ones or ones from the history, show up almost instantly, so they aren't counted.
+ *
+ * With a fused transform, Scalr isn't used at all, and the transform only has a full and a fast pass, so giving up
+ * quality goes straight to the level where it goes fast, and no further. The levels in between and beyond would
+ * change nothing but the logs.
+ *
+ * When it's turned off, it never adjusts anything and just hands back the starting values.
+ */
+public class AdaptivePacer {
+    private static final Logger log = LoggerFactory.getLogger(AdaptivePacer.class);
+    // From best to fastest
+    private static final Scalr.Method[] RESIZE_METHODS = {
+            Scalr.Method.ULTRA_QUALITY, Scalr.Method.QUALITY, Scalr.Method.BALANCED, Scalr.Method.SPEED};
+    // The level where a fused transform drops to its fast, bilinear pass
+    private static final int FAST_TRANSFORM_LEVEL = 2;
+    private static final int DELIVERIES_PER_DECISION = 8;
+    // Weight of each new sample in the running averages
+    private static final double SMOOTHING = 0.2;
+    // Resizing has to be at least this much of the delivery time before cutting its quality is worth it
+    private static final double RESIZE_SHARE_WORTH_CUTTING = 0.25;
+    private static final int MAX_CHANGE_DELAY_MULTIPLE = 4;
+    private final boolean enabled;
+    private final boolean fusedTransform;
+    private final long targetMillis;
+    private final int baseChangeDelayMillis;
+    private final int basePrefetchDepth;
+    private final int maxPrefetchDepth;
+    private double deliveryMillis = -1;
+    private double resizeMillis = -1;
+    private int deliveriesSinceDecision;
+    private volatile int qualityLevel;
+    private volatile int prefetchDepth;
+    private volatile int changeDelayMillis;
+
+    public AdaptivePacer(boolean enabled, long targetMillis, int baseChangeDelayMillis, int basePrefetchDepth,
+                         int maxPrefetchDepth, boolean fusedTransform, Metrics metrics) {
+        this.enabled = enabled;
+        this.fusedTransform = fusedTransform;
+        this.targetMillis = targetMillis;
+        this.baseChangeDelayMillis = baseChangeDelayMillis;
+        this.basePrefetchDepth = basePrefetchDepth;
+        this.maxPrefetchDepth = Math.max(basePrefetchDepth, maxPrefetchDepth);
+        this.prefetchDepth = basePrefetchDepth;
+        this.changeDelayMillis = baseChangeDelayMillis;
+        metrics.pacerDecisions(() -> qualityLevel, () -> prefetchDepth, () -> changeDelayMillis,
+                this::getDeliveryMillis);
+    }
+
+    /**
+     * Records how long it took from assigning a photo to a panel until it was on screen at full quality.
+     */
+    public synchronized void deliveryTook(long millis) {
+        deliveryMillis = smooth(deliveryMillis, millis);
+        if (++deliveriesSinceDecision >= DELIVERIES_PER_DECISION) {
+            deliveriesSinceDecision = 0;
+            if (enabled) {
+                decide();
+            }
+        }
+    }
+
+    /**
+     * Records how long the final, full quality resize of a photo took.
+     */
+    public synchronized void resizeTook(long millis) {
+        resizeMillis = smooth(resizeMillis, millis);
+    }
+
+    public Scalr.Method resizeMethod() {
+        return RESIZE_METHODS[qualityLevel];
+    }
+
+    /**
+     * Whether a fused transform should use its fast pass, for the same reason Scalr would be given a faster method.
+     */
+    public boolean fastTransform() {
+        return qualityLevel >= FAST_TRANSFORM_LEVEL;
+    }
+
+    public int prefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public int changeDelayMillis() {
+        return changeDelayMillis;
+    }
+
+    /**
+     * How long a panel has to have been showing its photo before it's due to auto change. It's a third of the change
+     * delay, which is the 2.5 seconds it always was at the default delay.
+     */
+    public int settleMillis() {
+        return changeDelayMillis / 3;
+    }
+
+    public synchronized double getDeliveryMillis() {
+        return Math.max(0, deliveryMillis);
+    }
+
+    private void decide() {
+        if (deliveryMillis > targetMillis * 1.25) {
+            slowDown();
+        } else if (deliveryMillis < targetMillis * 0.5) {
+            speedUp();
+        }
+    }
+
+    private void slowDown() {
+        if (qualityLevel < lowestQualityLevel() && resizeMillis > deliveryMillis * RESIZE_SHARE_WORTH_CUTTING) {
+            qualityLevel = stepQuality(1);
+            log.info("Deliveries averaging {}ms, so dropping resize quality to {}", (long) deliveryMillis,
+                    resizeMethod());
+        } else if (prefetchDepth > 1) {
+            prefetchDepth--;
+            log.info("Deliveries averaging {}ms, so prefetching only {} per panel", (long) deliveryMillis,
+                    prefetchDepth);
+        } else if (changeDelayMillis < baseChangeDelayMillis * MAX_CHANGE_DELAY_MULTIPLE) {
+            changeDelayMillis = Math.min(baseChangeDelayMillis * MAX_CHANGE_DELAY_MULTIPLE,
+                    changeDelayMillis + baseChangeDelayMillis / 2);
+            log.info("Deliveries averaging {}ms, so slowing photo changes to every {}ms", (long) deliveryMillis,
+                    changeDelayMillis);
+        }
+    }
+
+    private void speedUp() {
+        if (changeDelayMillis > baseChangeDelayMillis) {
+            changeDelayMillis = Math.max(baseChangeDelayMillis, changeDelayMillis - baseChangeDelayMillis / 2);
+            log.info("Deliveries averaging {}ms, so speeding photo changes up to every {}ms", (long) deliveryMillis,
+                    changeDelayMillis);
+        } else if (prefetchDepth < basePrefetchDepth) {
+            prefetchDepth++;
+            log.info("Deliveries averaging {}ms, so prefetching {} per panel again", (long) deliveryMillis,
+                    prefetchDepth);
+        } else if (qualityLevel > 0) {
+            qualityLevel = stepQuality(-1);
+            log.info("Deliveries averaging {}ms, so raising resize quality to {}", (long) deliveryMillis,
+                    resizeMethod());
+        } else if (prefetchDepth < maxPrefetchDepth) {
+            prefetchDepth++;
+            log.info("Deliveries averaging {}ms, so prefetching {} per panel", (long) deliveryMillis, prefetchDepth);
+        }
+    }
+
+    private int lowestQualityLevel() {
+        return fusedTransform ? FAST_TRANSFORM_LEVEL : RESIZE_METHODS.length - 1;
+    }
+
+    private int stepQuality(int direction) {
+        int level = qualityLevel + direction;
+        if (fusedTransform && level > 0 && level < FAST_TRANSFORM_LEVEL) {
+            level += direction;
+        }
+        return level;
+    }
+
+    private static double smooth(double average, long sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,43 @@
+package rds.photogallery;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * The frames of an animation, fully composited and already scaled for the panel they're going to be shown in, along
+ * with how long each one stays on screen. Showing a frame is just drawing it.
+ */
+public class AnimatedImage {
+    private final List<BufferedImage> frames;
+    private final int[] delaysMillis;
+    private final long bytes;
+
+    public AnimatedImage(List<BufferedImage> frames, int[] delaysMillis) {
+        this.frames = frames;
+        this.delaysMillis = delaysMillis;
+        long total = 0;
+        for (BufferedImage frame : frames) {
+            total += PhotoTools.imageBytes(frame);
+        }
+        this.bytes = total;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    public BufferedImage getFrame(int index) {
+        return frames.get(index);
+    }
+
+    public int getDelayMillis(int index) {
+        return delaysMillis[index];
+    }
+
+    /**
+     * Memory held by all the frames together.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
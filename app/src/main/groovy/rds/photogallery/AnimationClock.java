@@ -0,0 +1,116 @@
+package rds.photogallery;
+
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drives every animation in the app from a single Swing timer, which ticks on the event thread only while something is
+ * playing. Each tick, any panel whose animation is due for its next frame is moved ahead and repainted. The frames are
+ * already decoded and scaled, so that's all it takes.
+ *
+ * It also keeps track of the memory held by every animation that's been loaded, whether it's playing, prefetched, in
+ * the history, or waiting for a batch to be revealed, and hands out what's left of the budget to new animations, which
+ * drop frames to fit into it. Nobody has to say when they're done with an animation. Whatever drops the last reference
+ * to one just lets it go, and it stops counting once it's been garbage collected.
+ */
+public class AnimationClock {
+    // GIF delays are in hundredths of a second, so there's no point in ticking any faster than this
+    private static final int TICK_MILLIS = 10;
+    private final Map<PhotoPanel, Playback> playing = new ConcurrentHashMap<>();
+    private final Map<AnimatedImage, Boolean> loaded = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Timer timer = new Timer(TICK_MILLIS, e -> tick());
+    private final long budgetBytes;
+
+    private static class Playback {
+        final AnimatedImage animation;
+        volatile int frame;
+        long nextFrameAt;
+
+        Playback(AnimatedImage animation) {
+            this.animation = animation;
+            this.nextFrameAt = System.currentTimeMillis() + animation.getDelayMillis(0);
+        }
+    }
+
+    public AnimationClock(long budgetBytes, Metrics metrics) {
+        this.budgetBytes = budgetBytes;
+        metrics.animationMemory(this::getBytesHeld);
+    }
+
+    /**
+     * Counts a newly loaded animation against the budget for as long as anything holds on to it.
+     */
+    public void track(AnimatedImage animation) {
+        loaded.put(animation, Boolean.TRUE);
+    }
+
+    /**
+     * Starts playing an animation in a panel, from the first frame, replacing whatever was playing there.
+     */
+    public void play(PhotoPanel panel, AnimatedImage animation) {
+        playing.put(panel, new Playback(animation));
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    public void stop(PhotoPanel panel) {
+        playing.remove(panel);
+    }
+
+    /**
+     * The frame of the animation the panel should be showing right now.
+     */
+    public int currentFrame(PhotoPanel panel, AnimatedImage animation) {
+        Playback playback = playing.get(panel);
+        return playback == null || playback.animation != animation ? 0 : playback.frame;
+    }
+
+    /**
+     * How much memory a new animation for the panel can use, not counting what the panel's current animation holds,
+     * since it's going to be replaced.
+     */
+    public long allowanceFor(PhotoPanel panel) {
+        Playback current = playing.get(panel);
+        long others = getBytesHeld() - (current == null ? 0 : current.animation.getBytes());
+        return Math.max(0, budgetBytes - others);
+    }
+
+    public long getBytesHeld() {
+        final List<AnimatedImage> animations;
+        synchronized (loaded) {
+            animations = new ArrayList<>(loaded.keySet());
+        }
+        long total = 0;
+        for (AnimatedImage animation : animations) {
+            total += animation.getBytes();
+        }
+        return total;
+    }
+
+    private void tick() {
+        if (playing.isEmpty()) {
+            timer.stop();
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        playing.forEach((panel, playback) -> {
+            if (now < playback.nextFrameAt) {
+                return;
+            }
+            int frame = playback.frame;
+            // If the event thread fell behind, skip ahead instead of playing catch up
+            while (now >= playback.nextFrameAt) {
+                frame = (frame + 1) % playback.animation.getFrameCount();
+                playback.nextFrameAt += playback.animation.getDelayMillis(frame);
+            }
+            playback.frame = frame;
+            panel.repaint();
+        });
+    }
+}
@@ -16,11 +16,13 @@ import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.util.List
-import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Predicate
 
 /*
  * A singleton that represents the running application. This acts sort of as an IoC container for everything else. It
@@ -33,7 +35,7 @@ class App {
 
     // Keeps track of frames, just so we can know when the last frame is closed and stop the app as a result
     private List<PhotoFrame> photoFrames = []
-    private ExecutorService generalWorkPool
+    private PriorityWorkPool workPool
     private ScheduledExecutorService scheduler
     private PersistentFrameState lastFrameState
     private DataSource sqliteDataSource
@@ -45,6 +47,7 @@ class App {
 
     private PhotoContentLoader photoContentLoader
     private PhotosController controller
+    private AnimationClock animationClock
     private AtomicInteger frameCount = new AtomicInteger(1)
 
     private static final App INSTANCE = new App()
@@ -71,6 +74,10 @@ class App {
         controller
     }
 
+    AnimationClock getAnimationClock() {
+        animationClock
+    }
+
     PhotoContentLoader getPhotoContentLoader() {
         photoContentLoader
     }
@@ -79,7 +86,7 @@ class App {
         return sqliteDataSource
     }
 
-    ExecutorService getGeneralWorkPool() {
+    PriorityWorkPool getWorkPool() {
         throw new UnsupportedOperationException("Don't get the work pool directly. Use an appropriate submit* method!")
     }
 
@@ -87,8 +94,8 @@ class App {
         throw new UnsupportedOperationException("Don't get the work pool directly. Use an appropriate schedule* method!")
     }
 
-    void submitGeneralWork(Runnable task) {
-        generalWorkPool.submit(new ThrowableReporting.Runnable() {
+    Future<?> submitWork(WorkPriority priority, Runnable task) {
+        workPool.submit(priority, new ThrowableReporting.Runnable() {
             @Override
             void doRun() throws Throwable {
                 task.run()
@@ -96,6 +103,15 @@ class App {
         })
     }
 
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        scheduler.schedule(new ThrowableReporting.Runnable() {
+            @Override
+            void doRun() throws Throwable {
+                task.run()
+            }
+        }, delay, timeUnit)
+    }
+
     void scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit timeUnit) {
         scheduler.scheduleWithFixedDelay(new ThrowableReporting.Runnable() {
             @Override
@@ -110,8 +126,8 @@ class App {
         metrics = new Metrics()
         // First, do a quick start to get something on the screen. This should be as fast as possible. Leave out any
         // unnecessary steps.
-        generalWorkPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1,
-                new ThreadFactoryBuilder().setNameFormat('general-worker-%d').build())
+        workPool = new PriorityWorkPool(Runtime.getRuntime().availableProcessors() + 1,
+                new ThreadFactoryBuilder().setNameFormat('general-worker-%d').build(), metrics)
         // TODO: Scheduler is bad! It's taking the place of what should be reactive, event driven things!
         scheduler = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder().setNameFormat('scheduler-%d').build())
@@ -128,8 +144,16 @@ class App {
             settings.setString(Settings.Setting.PHOTO_DATA_FILE, rootDir + '/' + photoDataFilePath)
         }
         settings.setString(Settings.Setting.PHOTO_ROOT_DIR, rootDir)
-        def photoRotation = new RandomDirWalkPhotoRotation(Paths.get(rootDir))
+        // A ratings db left from the last run takes over a few seconds in, so there's no point scanning the whole tree
+        // for the walk too, fighting the ratings index's own scan for the disk.
+        def ratingsIndexPersisted = Files.exists(Paths.get(settings.asString(Settings.Setting.RATINGS_DB_FILE)))
+        def photoRotation = new RandomDirWalkPhotoRotation(Paths.get(rootDir),
+                Boolean.parseBoolean(settings.asString(Settings.Setting.DIR_WALK_UNIFORM_BY_PHOTO)),
+                settings.asInt(Settings.Setting.DIR_WALK_REFRESH_MINUTES), !ratingsIndexPersisted,
+                settings.asInt(Settings.Setting.SCAN_PARALLELISM), metrics)
         photoContentLoader = new FileSystemPhotoContentLoader(rootDir)
+        animationClock = new AnimationClock(
+                settings.asInt(Settings.Setting.GIF_MEMORY_MEGABYTES) * 1024L * 1024L, metrics)
         controller = new PhotosController(photoRotation)
 
         def frameStateConfigFilePath = Paths.get(settings.asString(Settings.Setting.FRAME_STATE_FILE))
@@ -148,24 +172,39 @@ class App {
                 { true },
                 new File(rootDir))
         sqliteDataSource = new SQLiteDataSource()
-        sqliteDataSource.setUrl('jdbc:sqlite:photos.sqlite')
-        // A couple of settings to drastically increase speed at the expense of possible data loss, but this is an
-        // ephemeral database that's built on demand.
-        sqliteDataSource.setSynchronous(SQLiteConfig.SynchronousMode.OFF.toString())
+        sqliteDataSource.setUrl('jdbc:sqlite:' + settings.asString(Settings.Setting.RATINGS_DB_FILE))
+        // The index is kept across runs now, so it can't skip syncing altogether anymore, but with WAL, NORMAL only
+        // risks losing the last few writes in a crash, never corrupting the db.
+        sqliteDataSource.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL.toString())
         sqliteDataSource.setJournalMode(SQLiteConfig.JournalMode.WAL.toString())
         // Allow for updates to the database - not normal, but it can be useful to modify the db on the fly to test
         // things out or just for fun.
         sqliteDataSource.setBusyTimeout(10000);
-        buildRatingsDb()
-        controller.switchRotation(new SqliteRatingsBasedPhotoRotation())
+        def ratingsIndex = new RatingsIndex(sqliteDataSource, rootDir,
+                settings.asInt(Settings.Setting.SCAN_PARALLELISM), metrics)
+        if (ratingsIndex.hasPhotos()) {
+            // What's left from the last run is close enough to start rotating from while it's brought up to date
+            controller.switchRotation(this::newRatingsRotation)
+        }
+        updateRatingsIndex(ratingsIndex)
+        // Again, in case there are ratings now that weren't there before
+        controller.switchRotation(this::newRatingsRotation)
+    }
+
+    private PhotoRotation newRatingsRotation() {
+        if (settings.asString(Settings.Setting.ROTATION_ENGINE) == 'sqlite') {
+            new SqliteRatingsBasedPhotoRotation(sqliteDataSource, metrics)
+        } else {
+            new InMemoryRatingsPhotoRotation(sqliteDataSource, metrics)
+        }
     }
 
     /**
-     * Builds a sqlite db consisting of all photos found in the selected root dir, enriched with metadata from the local
-     * photo data source, if any. This db serves as the mechanism for selecting a random photo of a given rating that
-     * hasn't yet been displayed.
+     * Brings the sqlite index up to date with all photos found in the selected root dir, enriched with metadata from
+     * the local photo data source, if any. This db serves as the mechanism for selecting a random photo of a given
+     * rating that hasn't yet been displayed.
      */
-    private void buildRatingsDb() {
+    private void updateRatingsIndex(RatingsIndex ratingsIndex) {
         def excludedPaths = settings.asStringList(Settings.Setting.EXCLUDED_PATHS)
         def tagsFilter = new TagsFilter(settings.asString(Settings.Setting.TAG_FILTER))
         def photoPredicate = { PhotoData it ->
@@ -175,46 +214,7 @@ class App {
             }
             !filteredByTags && !filteredByPath
         }
-        def listerForDb = new FileSystemPhotoLister(rootDir)
-        def connection = sqliteDataSource.getConnection()
-        def initDbStmt = connection.createStatement()
-        // dump the data before re-populating. just a temporary measure, i think.
-        // maybe i can find a way to reuse the data in the future?
-        initDbStmt.execute('drop table if exists photos')
-        initDbStmt.execute('create table main.photos(' +
-                'pk serial primary key,' +
-                'relative_path text not null,' +
-                'rating integer not null,' +
-                'cycle text not null' +
-                ')'
-        )
-        def insertSql = 'insert into photos (relative_path, rating, cycle) values (?, ?, ?)'
-        def insertStmt = connection.prepareStatement(insertSql)
-        int batchCount = 0
-        metrics.time('insert all rows to db', {
-            while (listerForDb.hasNext()) {
-                def photoPath = listerForDb.next()
-                def photoData = this.localData.getPhotoData(photoPath)
-                if (!photoPredicate(photoData)) {
-                    log.trace("Filtering out of db: " + photoData)
-                    continue
-                }
-                insertStmt.setString(1, photoPath)
-                insertStmt.setInt(2, photoData.rating)
-                insertStmt.setString(3, 'none yet')
-                insertStmt.addBatch()
-                if (++batchCount >= 100) {
-                    batchCount = 0
-                    insertStmt.executeBatch()
-                    // TODO: get rid of this if there's a better way to free up resources
-                    sleep(50)
-                }
-            }
-            // Make sure to insert any final things that didn't make up a full batch
-            insertStmt.executeBatch()
-        })
-        insertStmt.close()
-        connection.close()
+        ratingsIndex.update(localData, photoPredicate as Predicate<PhotoData>)
     }
 
     /**
@@ -352,7 +352,7 @@ class App {
      * frame of the app. It generally takes care of saving current state so it can be restored at the next startup.
      */
     def shutDown() {
-        generalWorkPool.shutdown()
+        workPool.shutdown()
         scheduler.shutdown()
         final List<PersistentFrameState> frameStates
         if (photoFrames.isEmpty()) {
@@ -418,5 +418,6 @@ class App {
         if (count != 1) {
             throw new IllegalStateException("Should have updated exactly one entry in sqlite, updated " + count)
         }
+        controller.ratingChanged(photoData.relativePath, newRating)
     }
 }
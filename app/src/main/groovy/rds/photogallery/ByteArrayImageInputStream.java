@@ -0,0 +1,60 @@
+package rds.photogallery;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+
+/**
+ * An ImageIO stream that reads straight out of a byte array. ImageIO's own streams over an InputStream cache what
+ * they read, so wrapping a file that's already in memory in one of those holds it in memory twice while it's decoded.
+ */
+class ByteArrayImageInputStream extends ImageInputStreamImpl {
+    private final byte[] bytes;
+
+    ByteArrayImageInputStream(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+        return bytes[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("off " + off + ", len " + len + ", length " + b.length);
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+        final int count = (int) Math.min(len, bytes.length - streamPos);
+        System.arraycopy(bytes, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return bytes.length;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+}
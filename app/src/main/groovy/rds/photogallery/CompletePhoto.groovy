@@ -1,13 +1,18 @@
 package rds.photogallery
 
-import java.awt.Image
 import java.awt.image.BufferedImage
 
 class CompletePhoto {
     final String relativePath
     final PhotoData data
+    // For an animation, this is the first frame
     BufferedImage image
-    Image gif
+    // Every frame, when the photo is animated. Null for still photos.
+    AnimatedImage animation
+    // The EXIF orientation of the photo this came from, which tells how the image needs to be turned to be upright
+    int orientation = 1
+    // A quick, low quality scaling that's only meant to be shown until the real one is ready
+    boolean preview
 
     CompletePhoto(String relativePath, BufferedImage image) {
         this.relativePath = relativePath
@@ -0,0 +1,277 @@
+package rds.photogallery;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps scaled and rotated copies of photos on the local disk, so that showing a photo again, even after a restart,
+ * doesn't mean pulling the whole original across the network and decoding it. Each copy is tied to the original's
+ * path, modification time, and size, as well as the size it was scaled to, so a changed original is never served
+ * stale.
+ *
+ * Copies are stored as raw pixels behind a tiny header, which costs more disk than a jpeg would but reads back with
+ * nothing more than a memory map and a copy. The total size of the store is held under a quota by throwing out the
+ * least recently used copies. Use order is kept in file modification times, so it carries over across restarts.
+ *
+ * Only opaque images are stored, since that's all the display pipeline makes, and it saves keeping an alpha channel
+ * that would always be full. Images with transparency, like GIF frames, aren't stored at all, rather than lose it.
+ */
+public class DerivativeStore {
+    private static final Logger log = LoggerFactory.getLogger(DerivativeStore.class);
+    private static final int MAGIC = 0x50474431;
+    // magic, width, height, orientation
+    private static final int HEADER_INTS = 4;
+    private static final String EXTENSION = ".pgd";
+    private final Path dir;
+    private final long quotaBytes;
+    private final Metrics metrics;
+    // File names of stored copies and their sizes, in access order, so iteration starts with the least recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesHeld;
+
+    /**
+     * A stored copy of a photo, along with the EXIF orientation of the original it was made from. The image has
+     * already been turned to that orientation.
+     */
+    public static class Derivative {
+        public final BufferedImage image;
+        public final int orientation;
+
+        Derivative(BufferedImage image, int orientation) {
+            this.image = image;
+            this.orientation = orientation;
+        }
+    }
+
+    public DerivativeStore(Path dir, long quotaBytes, Metrics metrics) {
+        this.dir = dir;
+        this.quotaBytes = quotaBytes;
+        this.metrics = metrics;
+        try {
+            Files.createDirectories(dir);
+            List<Path> existing;
+            try (Stream<Path> files = Files.list(dir)) {
+                existing = files.collect(Collectors.toList());
+            }
+            // Oldest first, so the most recently used end up at the tail of the access order
+            existing.sort(Comparator.comparing(DerivativeStore::lastModified));
+            for (Path file : existing) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(EXTENSION)) {
+                    long size = Files.size(file);
+                    entries.put(name, size);
+                    bytesHeld += size;
+                } else {
+                    // Left over from a write that didn't finish
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open derivative store in " + dir, e);
+        }
+        log.info("Derivative store in {} holds {} copies using {} bytes", dir, entries.size(), bytesHeld);
+        metrics.cacheSize("derivative", this::getBytesHeld);
+        evictOverQuota();
+    }
+
+    /**
+     * Looks for a copy of the original scaled to the given size. Returns null if there isn't one.
+     */
+    public Derivative get(File original, Dimension size) {
+        final String name;
+        try {
+            name = entryName(original, size);
+        } catch (IOException e) {
+            log.info("Couldn't stat {} to look for a derivative", original, e);
+            return null;
+        }
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                metrics.cacheMiss("derivative");
+                return null;
+            }
+        }
+        Path file = dir.resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer ints = mapped.asIntBuffer();
+            if (ints.get() != MAGIC) {
+                throw new IOException("Not a derivative file");
+            }
+            int width = ints.get();
+            int height = ints.get();
+            int orientation = ints.get();
+            int[] pixels = new int[width * height];
+            ints.get(pixels);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            // Going through the raster instead of grabbing the data array keeps the image eligible for acceleration
+            image.getRaster().setDataElements(0, 0, width, height, pixels);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            metrics.cacheHit("derivative");
+            return new Derivative(PhotoTools.toDisplayFormat(image), orientation);
+        } catch (ClosedByInterruptException e) {
+            // The load was cancelled partway through reading, which says nothing about the file itself
+            throw new CancellationException("Interrupted while reading derivative " + file);
+        } catch (IOException | RuntimeException e) {
+            // Most likely evicted out from under us, or damaged somehow. Either way, it'll get rebuilt.
+            log.info("Failed to read derivative {} of {}", file, original, e);
+            forget(name);
+            metrics.cacheMiss("derivative");
+            return null;
+        }
+    }
+
+    /**
+     * Saves a copy of the original that's been scaled to the given size and turned to the given orientation. This
+     * writes to disk, so keep it off of any thread someone is waiting on. Images that aren't opaque are skipped.
+     */
+    public void put(File original, Dimension size, int orientation, BufferedImage image) {
+        final String name;
+        try {
+            name = entryName(original, size);
+        } catch (IOException e) {
+            log.info("Couldn't stat {} to store a derivative", original, e);
+            return;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long fileSize = 4L * (HEADER_INTS + (long) width * height);
+        if (fileSize > quotaBytes || image.getTransparency() != Transparency.OPAQUE) {
+            return;
+        }
+        Path file = dir.resolve(name);
+        // A file of its own, so two panels storing the same copy at once can't write over each other's
+        final Path tmpFile;
+        try {
+            tmpFile = Files.createTempFile(dir, name, ".tmp");
+        } catch (IOException e) {
+            log.warn("Failed to create a file for derivative {} of {}", file, original, e);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.put(MAGIC).put(width).put(height).put(orientation);
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                ints.put(row);
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write derivative {} of {}", file, original, e);
+            deleteQuietly(tmpFile);
+            return;
+        }
+        try {
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to move derivative {} into place", file, e);
+            deleteQuietly(tmpFile);
+            return;
+        }
+        synchronized (this) {
+            Long replaced = entries.put(name, fileSize);
+            if (replaced != null) {
+                bytesHeld -= replaced;
+            }
+            bytesHeld += fileSize;
+        }
+        evictOverQuota();
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    private void evictOverQuota() {
+        while (true) {
+            final String eldest;
+            synchronized (this) {
+                if (bytesHeld <= quotaBytes || entries.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+                Map.Entry<String, Long> entry = iterator.next();
+                eldest = entry.getKey();
+                bytesHeld -= entry.getValue();
+                iterator.remove();
+            }
+            try {
+                Files.deleteIfExists(dir.resolve(eldest));
+                metrics.cacheEviction("derivative");
+            } catch (IOException e) {
+                log.warn("Failed to evict derivative {}", eldest, e);
+            }
+        }
+    }
+
+    /**
+     * Drops an entry that couldn't be read, along with its file, so it doesn't keep counting against the quota or get
+     * picked up again on the next start.
+     */
+    private void forget(String name) {
+        synchronized (this) {
+            Long size = entries.remove(name);
+            if (size != null) {
+                bytesHeld -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(name));
+        } catch (IOException e) {
+            log.warn("Failed to delete derivative {}", name, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete {}", file, e);
+        }
+    }
+
+    /**
+     * Copies are keyed by the exact size they were scaled to, not a range of sizes, since a photo is only shown at a
+     * size that exactly fits its panel. A copy for a range would have to be scaled again every time it's read.
+     */
+    private static String entryName(File original, Dimension size) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(original.toPath(), BasicFileAttributes.class);
+        String key = original.getAbsolutePath() + '|' + attributes.lastModifiedTime().toMillis() + '|' +
+                attributes.size() + '|' + size.width + 'x' + size.height;
+        return DigestUtils.shaHex(key) + EXTENSION;
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -1,7 +1,18 @@
 package rds.photogallery
 
+import org.apache.commons.imaging.ImageReadException
+import org.apache.commons.imaging.Imaging
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants
+
 import javax.imageio.ImageIO
-import java.awt.Toolkit
+import javax.imageio.ImageReadParam
+import javax.imageio.ImageReader
+import javax.imageio.event.IIOReadProgressListener
+import java.awt.Dimension
+import java.awt.Rectangle
+import java.nio.file.Files
+import java.util.concurrent.CancellationException
 
 class FileSystemPhotoContentLoader implements PhotoContentLoader {
     String photoRootDir
@@ -12,25 +23,147 @@ class FileSystemPhotoContentLoader implements PhotoContentLoader {
 
     @Override
     CompletePhoto load(String photoRelativePath) {
+        load(photoRelativePath, null)
+    }
+
+    /**
+     * Reads the photo file exactly once, into memory, and gets both the EXIF orientation and the image from those
+     * bytes. Photo files often live on a network mount, where reading a file twice costs twice as much.
+     */
+    @Override
+    CompletePhoto load(String photoRelativePath, Dimension targetSize) {
         def pathToLoad = App.instance.resolvePhotoPath(photoRelativePath)
         try {
-            def read = ImageIO.read(pathToLoad)
-            if (read == null) {
-                throw new IllegalStateException("Failed to read image from file: " + pathToLoad)
+            // A buffer per load, rather than one reused per thread. Reusing would pin the largest file each worker
+            // ever saw in the heap for good.
+            byte[] bytes = Files.readAllBytes(pathToLoad.toPath())
+            int orientation = readOrientation(bytes)
+            // Decoded straight from the bytes that are already in memory, without ImageIO caching its own copy
+            def input = new ByteArrayImageInputStream(bytes)
+            try {
+                def readers = ImageIO.getImageReaders(input)
+                if (!readers.hasNext()) {
+                    throw new IllegalStateException("Failed to read image from file: " + pathToLoad)
+                }
+                ImageReader reader = readers.next()
+                try {
+                    reader.setInput(input, true, true)
+                    reader.addIIOReadProgressListener(new AbortOnInterrupt())
+                    ImageReadParam param = reader.defaultReadParam
+                    if (targetSize != null) {
+                        int width = reader.getWidth(0)
+                        int height = reader.getHeight(0)
+                        int subsampling = PhotoTools.decodeSubsampling(width, height, targetSize, orientation)
+                        if (subsampling > 1) {
+                            // Only read whole samples, so a partial row or column of pixels at the edge doesn't get
+                            // stretched into a full one.
+                            param.setSourceRegion(new Rectangle(0, 0,
+                                    width - width % subsampling, height - height % subsampling))
+                            param.setSourceSubsampling(subsampling, subsampling, 0, 0)
+                        }
+                    }
+                    def read = reader.read(0, param)
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("Load of " + pathToLoad + " was cancelled")
+                    }
+                    def result = new CompletePhoto(photoRelativePath, read)
+                    result.orientation = orientation
+                    return result
+                } finally {
+                    reader.dispose()
+                }
+            } finally {
+                input.close()
             }
-            return new CompletePhoto(photoRelativePath, read)
         } catch (IOException e) {
             throw new IllegalStateException("Failed to load image from path: " + pathToLoad, e)
         }
     }
 
+    /**
+     * Stops a decode partway through if the thread doing it is interrupted, which is how photo loads are cancelled.
+     */
+    private static class AbortOnInterrupt implements IIOReadProgressListener {
+        @Override
+        void imageProgress(ImageReader source, float percentageDone) {
+            if (Thread.currentThread().isInterrupted()) {
+                source.abort()
+            }
+        }
+
+        @Override
+        void sequenceStarted(ImageReader source, int minIndex) {}
+
+        @Override
+        void sequenceComplete(ImageReader source) {}
+
+        @Override
+        void imageStarted(ImageReader source, int imageIndex) {}
+
+        @Override
+        void imageComplete(ImageReader source) {}
+
+        @Override
+        void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+
+        @Override
+        void thumbnailProgress(ImageReader source, float percentageDone) {}
+
+        @Override
+        void thumbnailComplete(ImageReader source) {}
+
+        @Override
+        void readAborted(ImageReader source) {}
+    }
+
+    /**
+     * Gets the EXIF orientation from a photo's bytes. Anything without one is treated as 1, meaning it's already the
+     * right way up.
+     */
+    static int readOrientation(byte[] bytes) {
+        try {
+            def metadata = Imaging.getMetadata(bytes)
+            // A GIF doesn't return any metadata, and a PNG seems to give a GenericImageMetadata, which I don't think I
+            // can work with
+            if (!(metadata instanceof JpegImageMetadata)) return 1
+            def rotationField = metadata.findEXIFValue(TiffTagConstants.TIFF_TAG_ORIENTATION)
+            if (rotationField == null) return 1
+            return rotationField.intValue
+        } catch (ImageReadException e) {
+            throw new IllegalStateException("Error reading image metadata - maybe this shouldn't be fatal", e)
+        }
+    }
+
     @Override
-    CompletePhoto getToolkitImage(String photoRelativePath) {
-        // todo: buffered image is no longer a required arg
-        def result = new CompletePhoto(photoRelativePath, null);
-        File file = App.getInstance().resolvePhotoPath(photoRelativePath);
-        URL url = new URL("file://" + file.getAbsolutePath());
-        result.setGif(Toolkit.getDefaultToolkit().createImage(url));
-        result
+    CompletePhoto loadAnimation(String photoRelativePath, Dimension targetSize, long memoryAllowanceBytes) {
+        def pathToLoad = App.instance.resolvePhotoPath(photoRelativePath)
+        try {
+            byte[] bytes = Files.readAllBytes(pathToLoad.toPath())
+            def input = new ByteArrayImageInputStream(bytes)
+            try {
+                def readers = ImageIO.getImageReaders(input)
+                if (!readers.hasNext()) {
+                    throw new IllegalStateException("Failed to read image from file: " + pathToLoad)
+                }
+                ImageReader reader = readers.next()
+                try {
+                    // Frames have to be counted up front, and their metadata has the disposal methods and delays
+                    reader.setInput(input, false, false)
+                    reader.addIIOReadProgressListener(new AbortOnInterrupt())
+                    def animation = GifDecoder.decode(reader, targetSize, memoryAllowanceBytes)
+                    def result = new CompletePhoto(photoRelativePath, animation.getFrame(0))
+                    if (animation.frameCount > 1) {
+                        result.animation = animation
+                    }
+                    return result
+                } finally {
+                    reader.dispose()
+                }
+            } finally {
+                input.close()
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load animation from path: " + pathToLoad, e)
+        }
     }
 }
@@ -12,4 +12,6 @@ class FrameConfiguration {
     boolean showingTags = false
     boolean distractionFree = false
     boolean alwaysOnTop = false
+    // Draw all the panels from one render thread instead of through Swing. Only takes effect while distraction free.
+    boolean activeRendering = false
 }
@@ -0,0 +1,185 @@
+package rds.photogallery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+/**
+ * Decodes every frame of a GIF up front, composites each one the way a browser would, following the frames' disposal
+ * methods, and scales it to fit the target size. The result can be played back without any more decoding or scaling,
+ * which is what the toolkit's animated images did on every frame, each with its own animator thread.
+ *
+ * If all the scaled frames wouldn't fit in the memory allowed, frames are dropped evenly throughout, with each kept
+ * frame staying on screen for the frames dropped after it, so the animation runs at the right speed, only choppier.
+ */
+public class GifDecoder {
+    private static final Logger log = LoggerFactory.getLogger(GifDecoder.class);
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    // Browsers treat tiny delays as "as fast as you can", and slow them down to this instead. Lots of GIFs rely on it.
+    private static final int MIN_DELAY_MILLIS = 20;
+    private static final int DEFAULT_DELAY_MILLIS = 100;
+
+    /**
+     * Decodes all frames from a reader that already has its input set, not seek-forward-only, so frames can be counted
+     * up front. The target size can be null to keep frames at their original size.
+     */
+    public static AnimatedImage decode(ImageReader reader, Dimension targetSize, long memoryAllowanceBytes)
+            throws IOException {
+        final int frameCount = reader.getNumImages(true);
+        final Dimension screen = logicalScreenSize(reader);
+        final Dimension scaled = targetSize == null ? screen : fittedSize(screen, targetSize);
+        final long bytesPerFrame = 4L * scaled.width * scaled.height;
+        final int keepEvery = (int) Math.max(1,
+                Math.min(frameCount, divideRoundingUp(bytesPerFrame * frameCount, Math.max(1, memoryAllowanceBytes))));
+        if (keepEvery > 1) {
+            log.info("Keeping every {} of {} frames to fit in {} bytes", keepEvery, frameCount, memoryAllowanceBytes);
+        }
+        // PhotoTools passes a message template first, followed by its arguments
+        final Function<Object[], Void> logger = objects -> {
+            log.info("Scaling GIF frame: " + objects[0], Arrays.copyOfRange(objects, 1, objects.length));
+            return null;
+        };
+        final List<BufferedImage> frames = new ArrayList<>();
+        final List<Integer> delays = new ArrayList<>();
+        final BufferedImage canvas = new BufferedImage(screen.width, screen.height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = canvas.createGraphics();
+        try {
+            for (int i = 0; i < frameCount; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Interrupted while decoding GIF frames");
+                }
+                final BufferedImage raw = reader.read(i);
+                final FrameInfo info = frameInfo(reader.getImageMetadata(i), raw);
+                final BufferedImage previous = "restoreToPrevious".equals(info.disposal) ? copy(canvas) : null;
+                graphics.drawImage(raw, info.x, info.y, null);
+                if (i % keepEvery == 0) {
+                    // Keep the transparent parts, so they show whatever the panel draws behind the frame
+                    frames.add(PhotoTools.transformImage(canvas, 1, targetSize == null ? screen : targetSize, false,
+                            null, Transparency.TRANSLUCENT, logger));
+                    delays.add(info.delayMillis);
+                } else {
+                    int last = delays.size() - 1;
+                    delays.set(last, delays.get(last) + info.delayMillis);
+                }
+                // Get the canvas ready for the next frame
+                if ("restoreToBackgroundColor".equals(info.disposal)) {
+                    graphics.setComposite(AlphaComposite.Clear);
+                    graphics.fillRect(info.x, info.y, info.width, info.height);
+                    graphics.setComposite(AlphaComposite.SrcOver);
+                } else if (previous != null) {
+                    graphics.setComposite(AlphaComposite.Src);
+                    graphics.drawImage(previous, 0, 0, null);
+                    graphics.setComposite(AlphaComposite.SrcOver);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        final int[] delaysMillis = new int[delays.size()];
+        for (int i = 0; i < delaysMillis.length; i++) {
+            delaysMillis[i] = delays.get(i);
+        }
+        return new AnimatedImage(frames, delaysMillis);
+    }
+
+    private static class FrameInfo {
+        int x;
+        int y;
+        int width;
+        int height;
+        String disposal = "none";
+        int delayMillis = DEFAULT_DELAY_MILLIS;
+    }
+
+    private static FrameInfo frameInfo(IIOMetadata metadata, BufferedImage raw) {
+        final FrameInfo info = new FrameInfo();
+        info.width = raw.getWidth();
+        info.height = raw.getHeight();
+        if (metadata == null || !GIF_IMAGE_METADATA.equals(metadata.getNativeMetadataFormatName())) {
+            return info;
+        }
+        for (Node node = metadata.getAsTree(GIF_IMAGE_METADATA).getFirstChild(); node != null;
+             node = node.getNextSibling()) {
+            NamedNodeMap attributes = node.getAttributes();
+            if ("ImageDescriptor".equals(node.getNodeName())) {
+                info.x = intAttribute(attributes, "imageLeftPosition", 0);
+                info.y = intAttribute(attributes, "imageTopPosition", 0);
+            } else if ("GraphicControlExtension".equals(node.getNodeName())) {
+                Node disposal = attributes.getNamedItem("disposalMethod");
+                if (disposal != null) {
+                    info.disposal = disposal.getNodeValue();
+                }
+                int delay = intAttribute(attributes, "delayTime", 0) * 10;
+                info.delayMillis = delay < MIN_DELAY_MILLIS ? DEFAULT_DELAY_MILLIS : delay;
+            }
+        }
+        return info;
+    }
+
+    private static Dimension logicalScreenSize(ImageReader reader) throws IOException {
+        IIOMetadata streamMetadata = reader.getStreamMetadata();
+        if (streamMetadata != null && GIF_STREAM_METADATA.equals(streamMetadata.getNativeMetadataFormatName())) {
+            for (Node node = streamMetadata.getAsTree(GIF_STREAM_METADATA).getFirstChild(); node != null;
+                 node = node.getNextSibling()) {
+                if ("LogicalScreenDescriptor".equals(node.getNodeName())) {
+                    int width = intAttribute(node.getAttributes(), "logicalScreenWidth", 0);
+                    int height = intAttribute(node.getAttributes(), "logicalScreenHeight", 0);
+                    if (width > 0 && height > 0) {
+                        return new Dimension(width, height);
+                    }
+                }
+            }
+        }
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+    }
+
+    /**
+     * The size an image ends up after being scaled to fit in the target size, keeping its aspect ratio.
+     */
+    private static Dimension fittedSize(Dimension image, Dimension target) {
+        double scale = Math.min(target.getWidth() / image.width, target.getHeight() / image.height);
+        return new Dimension(Math.max(1, (int) Math.round(image.width * scale)),
+                Math.max(1, (int) Math.round(image.height * scale)));
+    }
+
+    private static int intAttribute(NamedNodeMap attributes, String name, int defaultValue) {
+        Node attribute = attributes == null ? null : attributes.getNamedItem(name);
+        if (attribute == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(attribute.getNodeValue());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        Graphics2D graphics = copy.createGraphics();
+        try {
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return copy;
+    }
+}
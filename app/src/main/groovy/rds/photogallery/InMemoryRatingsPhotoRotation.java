@@ -0,0 +1,292 @@
+package rds.photogallery;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link PhotoRotation} that selects photos based on ratings, like {@link SqliteRatingsBasedPhotoRotation}, with the
+ * same rating frequencies and the same A/B cycles, but without going to the db for each photo. Everything is loaded
+ * from the db up front, and then each rating is an array of photo ids with a cursor through it. The ids before the
+ * cursor have been shown in the rating's current cycle, and the ones after it haven't. Drawing a photo swaps a random
+ * one of those after the cursor up to it and moves the cursor past it, so each cycle works out to a Fisher-Yates
+ * shuffle done one step at a time, and a draw takes the same, short time no matter how many photos there are.
+ *
+ * Which photos have been shown is written back to the db in the background every few seconds, and when the rotation is
+ * flushed or closed, so the next rotation or the next run picks up where this one left off.
+ */
+public class InMemoryRatingsPhotoRotation implements PhotoRotation {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryRatingsPhotoRotation.class);
+    private static final int CHECKPOINT_SECONDS = 5;
+    private final DataSource dataSource;
+    private final Metrics metrics;
+    private final Random rand = new Random();
+    // Every photo's path, by its id. This doesn't change after loading, so it's safe to read without the lock.
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> idsByPath = new HashMap<>();
+    private final Map<Integer, Bucket> buckets = new TreeMap<>();
+    // Where each photo is, by its id
+    private Bucket[] bucketOf;
+    private int[] positionOf;
+    // One entry per share of the frequency chart, so picking a rating is picking one of these
+    private Bucket[] draws;
+    // Photos shown since the last checkpoint, as ids shifted left one bit, with the low bit set for cycle B
+    private int[] pending = new int[256];
+    private int pendingCount;
+    private boolean cyclesChanged;
+    private final ScheduledExecutorService checkpointer;
+    // Checkpoints are taken one at a time, so an older one can't be saved over a newer one
+    private final Object checkpointLock = new Object();
+
+    /**
+     * The photos of one rating.
+     */
+    private class Bucket {
+        final int rating;
+        int[] ids = new int[16];
+        int size;
+        // ids[0, shown) have been shown in the current cycle, and ids[shown, size) haven't yet
+        int shown;
+        boolean onCycleB;
+
+        Bucket(int rating, String cycle) {
+            this.rating = rating;
+            this.onCycleB = "B".equals(cycle);
+        }
+
+        String cycle() {
+            return onCycleB ? "B" : "A";
+        }
+
+        int draw() {
+            if (shown == size) {
+                onCycleB = !onCycleB;
+                shown = 0;
+                cyclesChanged = true;
+                log.info("Setting cycle for rating {} to {}", rating, cycle());
+            }
+            swap(shown, shown + rand.nextInt(size - shown));
+            return ids[shown++];
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = id;
+            positionOf[id] = size;
+            bucketOf[id] = this;
+            size++;
+        }
+
+        void remove(int id) {
+            int position = positionOf[id];
+            if (position < shown) {
+                // Keep the shown ones together by filling the gap with the last of them
+                move(shown - 1, position);
+                position = shown - 1;
+                shown--;
+            }
+            move(size - 1, position);
+            size--;
+        }
+
+        private void swap(int i, int j) {
+            int id = ids[i];
+            move(j, i);
+            ids[j] = id;
+            positionOf[id] = j;
+        }
+
+        private void move(int from, int to) {
+            ids[to] = ids[from];
+            positionOf[ids[to]] = to;
+        }
+    }
+
+    public InMemoryRatingsPhotoRotation(DataSource dataSource, Metrics metrics) {
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+        metrics.time("ratings rotation load", this::load);
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rotation-checkpoint-%d").setDaemon(true).build());
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String next() {
+        return metrics.timeAndReturn("find random in memory", this::draw);
+    }
+
+    private synchronized String draw() {
+        if (draws.length == 0) {
+            throw new IllegalStateException("There are no photos in the ratings db to rotate through");
+        }
+        Bucket bucket = draws[rand.nextInt(draws.length)];
+        int id = bucket.draw();
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = id << 1 | (bucket.onCycleB ? 1 : 0);
+        return paths.get(id);
+    }
+
+    /**
+     * Moves a photo to the bucket for its new rating. It goes in with the photos that haven't been shown yet in that
+     * rating's cycle.
+     */
+    @Override
+    public synchronized void ratingChanged(String relativePath, int newRating) {
+        Integer id = idsByPath.get(relativePath);
+        if (id == null || bucketOf[id].rating == newRating) {
+            return;
+        }
+        Bucket from = bucketOf[id];
+        Bucket to = buckets.computeIfAbsent(newRating, rating -> new Bucket(rating, "A"));
+        from.remove(id);
+        to.add(id);
+        // Ratings that come and go change what can be drawn
+        if (from.size == 0 || to.size == 1) {
+            buildDraws();
+        }
+    }
+
+    /**
+     * Saves whatever hasn't been saved yet, without waiting for the next checkpoint.
+     */
+    @Override
+    public void flush() {
+        checkpoint();
+    }
+
+    /**
+     * Stops checkpointing in the background and saves whatever hasn't been saved yet.
+     */
+    @Override
+    public void close() {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+    }
+
+    private void load() {
+        int[] shownIds;
+        int shownCount = 0;
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            ResultSet resultSet = statement.executeQuery("select rating, cycle from rating_cycles");
+            while (resultSet.next()) {
+                int rating = resultSet.getInt(1);
+                buckets.put(rating, new Bucket(rating, resultSet.getString(2)));
+            }
+            resultSet.close();
+            resultSet = statement.executeQuery("select count(*) from photos");
+            int count = resultSet.next() ? resultSet.getInt(1) : 0;
+            resultSet.close();
+            bucketOf = new Bucket[count];
+            positionOf = new int[count];
+            shownIds = new int[count];
+            resultSet = statement.executeQuery("select relative_path, rating, cycle from photos");
+            while (resultSet.next()) {
+                int id = paths.size();
+                if (id == bucketOf.length) {
+                    // Something was added since counting
+                    bucketOf = Arrays.copyOf(bucketOf, id * 2 + 1);
+                    positionOf = Arrays.copyOf(positionOf, id * 2 + 1);
+                    shownIds = Arrays.copyOf(shownIds, id * 2 + 1);
+                }
+                String path = resultSet.getString(1);
+                paths.add(path);
+                idsByPath.put(path, id);
+                Bucket bucket = buckets.computeIfAbsent(resultSet.getInt(2), rating -> new Bucket(rating, "A"));
+                bucket.add(id);
+                if (bucket.cycle().equals(resultSet.getString(3))) {
+                    shownIds[shownCount++] = id;
+                }
+            }
+            resultSet.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load the ratings db", e);
+        }
+        for (int i = 0; i < shownCount; i++) {
+            int id = shownIds[i];
+            Bucket bucket = bucketOf[id];
+            bucket.swap(positionOf[id], bucket.shown++);
+        }
+        buildDraws();
+        log.info("Loaded {} photos in {} ratings, {} of them already shown in their current cycle", paths.size(),
+                buckets.size(), shownCount);
+    }
+
+    private void buildDraws() {
+        List<Bucket> result = new ArrayList<>();
+        for (Bucket bucket : buckets.values()) {
+            if (bucket.size > 0) {
+                int frequency = SqliteRatingsBasedPhotoRotation.FREQUENCY_CHART.getOrDefault(bucket.rating, 0);
+                result.addAll(Collections.nCopies(frequency, bucket));
+            }
+        }
+        draws = result.toArray(new Bucket[0]);
+    }
+
+    /**
+     * Writes the photos shown since the last checkpoint, and the cycle each rating is on, to the db. Only the copying
+     * happens under the rotation's lock, so draws don't wait on the db.
+     */
+    private void checkpoint() {
+        synchronized (checkpointLock) {
+            final int[] toSave;
+            final Map<Integer, String> cycles = new HashMap<>();
+            final boolean saveCycles;
+            synchronized (this) {
+                toSave = Arrays.copyOf(pending, pendingCount);
+                pendingCount = 0;
+                saveCycles = cyclesChanged;
+                cyclesChanged = false;
+                for (Bucket bucket : buckets.values()) {
+                    cycles.put(bucket.rating, bucket.cycle());
+                }
+            }
+            if (toSave.length == 0 && !saveCycles) {
+                return;
+            }
+            try {
+                metrics.time("ratings rotation checkpoint", () -> save(toSave, cycles));
+            } catch (RuntimeException e) {
+                // Not the end of the world. The photos will just be shown again sooner than they should be.
+                log.warn("Failed to save {} shown photos to the ratings db", toSave.length, e);
+            }
+        }
+    }
+
+    private void save(int[] shown, Map<Integer, String> cycles) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement updateCycle = conn.prepareStatement(
+                    "update photos set cycle = ? where relative_path = ?")) {
+                for (int entry : shown) {
+                    updateCycle.setString(1, (entry & 1) == 1 ? "B" : "A");
+                    updateCycle.setString(2, paths.get(entry >>> 1));
+                    updateCycle.addBatch();
+                }
+                updateCycle.executeBatch();
+            }
+            for (Map.Entry<Integer, String> cycle : cycles.entrySet()) {
+                SqliteRatingsBasedPhotoRotation.saveCycle(conn, cycle.getKey(), cycle.getValue());
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to checkpoint the ratings rotation", e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package rds.photogallery;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Makes sure a photo is only read and decoded once, no matter how many panels want it at the same time. With several
+ * frames up on several monitors, and a rotation with only a few photos in it, panels land on the same photo, or the
+ * same burst of photos, all the time.
+ *
+ * The first panel to ask for a photo loads the master copy, and anyone else who asks for the same photo while that's
+ * going on waits for it and shares it, as long as it was decoded with enough detail for them. Only the final scaling
+ * happens separately for each panel. Someone who needs more detail than the master in progress has loads their own
+ * copy instead. If the first panel gives up on its load, one of the panels waiting on it takes its place and loads it
+ * for the rest, who go back to waiting.
+ */
+public class MasterPhotoLoads {
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final BiFunction<String, Dimension, CompletePhoto> loader;
+    private final Metrics metrics;
+
+    /**
+     * A decoded photo that's shared by everyone who asked for it. Besides the decoded image, it can hold one rotated
+     * to its EXIF orientation, so that's only done once, too.
+     */
+    public static class Master {
+        private final CompletePhoto decoded;
+        private BufferedImage rotated;
+
+        Master(CompletePhoto decoded) {
+            this.decoded = decoded;
+        }
+
+        public CompletePhoto getDecoded() {
+            return decoded;
+        }
+
+        public synchronized BufferedImage rotated(Function<CompletePhoto, BufferedImage> rotator) {
+            if (rotated == null) {
+                rotated = rotator.apply(decoded);
+            }
+            return rotated;
+        }
+    }
+
+    private static class InFlight {
+        final Dimension targetSize;
+        final CompletableFuture<Master> master = new CompletableFuture<>();
+
+        InFlight(Dimension targetSize) {
+            this.targetSize = targetSize;
+        }
+
+        boolean covers(Dimension size) {
+            return targetSize.width >= size.width && targetSize.height >= size.height;
+        }
+    }
+
+    /**
+     * Takes a path and the size a photo will be shown at, and loads it with detail to spare for that size.
+     */
+    public MasterPhotoLoads(BiFunction<String, Dimension, CompletePhoto> loader, Metrics metrics) {
+        this.loader = loader;
+        this.metrics = metrics;
+    }
+
+    public Master load(String path, Dimension targetSize) {
+        while (true) {
+            final InFlight mine = new InFlight(targetSize);
+            final InFlight existing = inFlight.putIfAbsent(path, mine);
+            if (existing == null) {
+                return lead(path, mine);
+            }
+            if (!existing.covers(targetSize)) {
+                // Whatever's loading won't be detailed enough to scale up to this size
+                return new Master(loader.apply(path, targetSize));
+            }
+            try {
+                Master master = existing.master.get();
+                metrics.masterLoadShared();
+                return master;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for " + path + " to load");
+            } catch (CancellationException e) {
+                // Whoever was loading it gave up, but this still needs it. The first one here takes over the load at
+                // the same size, so it still covers everyone else who was waiting, and they go around to wait on it.
+                final InFlight takeover = new InFlight(existing.targetSize);
+                if (inFlight.putIfAbsent(path, takeover) == null) {
+                    return lead(path, takeover);
+                }
+                continue;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Failed to load " + path, e.getCause());
+            }
+        }
+    }
+
+    private Master lead(String path, InFlight mine) {
+        try {
+            Master master = new Master(loader.apply(path, mine.targetSize));
+            mine.master.complete(master);
+            return master;
+        } catch (RuntimeException | Error e) {
+            // Out of the way first, so whoever takes over from here doesn't find this failed load still in progress
+            inFlight.remove(path, mine);
+            // An interrupted load can fail in all kinds of ways, but it's a cancellation as far as anyone waiting on it
+            // is concerned, and one of them should take over
+            mine.master.completeExceptionally(Thread.currentThread().isInterrupted()
+                    ? new CancellationException("Load of " + path + " was cancelled") : e);
+            throw e;
+        } finally {
+            inFlight.remove(path, mine);
+        }
+    }
+}
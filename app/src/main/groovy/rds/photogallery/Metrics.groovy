@@ -1,6 +1,7 @@
 package rds.photogallery
 
 import io.micrometer.core.instrument.Clock
+import io.micrometer.core.instrument.Gauge
 import io.micrometer.core.instrument.Meter
 import io.micrometer.core.instrument.MeterRegistry
 import io.micrometer.core.instrument.config.NamingConvention
@@ -12,11 +13,13 @@ import io.micrometer.graphite.GraphiteProtocol
 import io.micrometer.opentsdb.OpenTSDBConfig
 import io.micrometer.opentsdb.OpenTSDBMeterRegistry
 
+import java.lang.management.ManagementFactory
 import java.nio.file.Paths
 import java.time.Duration
 import java.time.temporal.ChronoUnit
 import java.util.concurrent.Callable
 import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
 import java.util.stream.Collectors
 
 /**
@@ -26,6 +29,10 @@ import java.util.stream.Collectors
 class Metrics {
     private final MeterRegistry registry
 
+    Metrics(MeterRegistry registry) {
+        this.registry = registry
+    }
+
     Metrics() {
         String registrySetting = App.settings().asString(Settings.Setting.METER_REGISTRY).toLowerCase()
         if (registrySetting == "opentsdb") {
@@ -99,14 +106,151 @@ class Metrics {
         registry.timer(desc.replaceAll(' ', '_')).recordCallable(timedThing)
     }
 
+    /**
+     * Runs something and records how many bytes the current thread allocated while doing it. That's only available on
+     * JVMs that report per-thread allocation, which is all the ones I use, but elsewhere it just runs the thing.
+     */
+    def <T> T allocationOf(String desc, Callable<T> measuredThing) {
+        def threads = ManagementFactory.threadMXBean
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return measuredThing.call()
+        }
+        long threadId = Thread.currentThread().id
+        long before = threads.getThreadAllocatedBytes(threadId)
+        T result = measuredThing.call()
+        registry.summary(desc.replaceAll(' ', '_') + '_bytes_allocated')
+                .record(threads.getThreadAllocatedBytes(threadId) - before)
+        result
+    }
+
     void photoDeliveryTime(long time) {
         registry.timer('total_photo_delivery_time').record(time, TimeUnit.MILLISECONDS)
     }
 
+    /**
+     * Time from a photo being assigned to a panel until anything of it is on screen, even a low quality preview.
+     */
+    void timeToFirstPixel(long time) {
+        registry.timer('time_to_first_pixel').record(time, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Time from a photo being assigned to a panel until it's on screen at full quality.
+     */
+    void timeToFinalQuality(long time) {
+        registry.timer('time_to_final_quality').record(time, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Time from changing a batch of panels at once until their photos are all revealed, and whether all of them made it
+     * by the deadline.
+     */
+    void batchRevealed(long nanos, boolean complete) {
+        registry.timer('batch_reveal.time').record(nanos, TimeUnit.NANOSECONDS)
+        if (!complete) {
+            registry.counter('batch_reveal.deadline_misses').increment()
+        }
+    }
+
+    /**
+     * Shows what the adaptive pacer has decided. Resize quality is a level from 0, the best, to 3, the fastest.
+     */
+    void pacerDecisions(Supplier<Number> resizeQuality, Supplier<Number> prefetchDepth,
+                        Supplier<Number> changeDelayMillis, Supplier<Number> deliveryMillis) {
+        Gauge.builder('adaptive_pacer.resize_quality', resizeQuality).register(registry)
+        Gauge.builder('adaptive_pacer.prefetch_depth', prefetchDepth).register(registry)
+        Gauge.builder('adaptive_pacer.change_delay_millis', changeDelayMillis).register(registry)
+        Gauge.builder('adaptive_pacer.delivery_millis', deliveryMillis).register(registry)
+    }
+
+    /**
+     * Records a scan of the photo tree, and how many files per second it found, which is the number to watch when the
+     * photos are on a slow mount.
+     */
+    void photoScan(long files, long nanos) {
+        registry.timer('photo_scan.time').record(nanos, TimeUnit.NANOSECONDS)
+        registry.counter('photo_scan.files').increment(files)
+        if (nanos > 0) {
+            registry.summary('photo_scan.files_per_second').record(files * 1e9d / nanos)
+        }
+    }
+
+    void panelSurfaceRebuilt() {
+        registry.counter('panel_surface_rebuilds').increment()
+    }
+
+    void overlayLayerRendered() {
+        registry.counter('overlay_layer_renders').increment()
+    }
+
+    /**
+     * Counts reloads for a new panel size that were skipped because the size changed again before it settled.
+     */
+    void resizeReloadAvoided() {
+        registry.counter('resize_reloads_avoided').increment()
+    }
+
     void loadFailure() {
         registry.counter('load_photo_failures').increment()
     }
 
+    /**
+     * Records a photo load that was cancelled, along with how long it had been working before it was. Loads cancelled
+     * before they started wasted no time.
+     */
+    void loadCancelled(long wastedNanos) {
+        registry.counter('load_cancellations').increment()
+        if (wastedNanos > 0) {
+            registry.timer('cancelled_load_wasted_time').record(wastedNanos, TimeUnit.NANOSECONDS)
+        }
+    }
+
+    /**
+     * Keeps track of how much work of a given priority is waiting for a worker.
+     */
+    void workQueueDepth(String priority, Supplier<Number> queued) {
+        Gauge.builder("work_queue.depth.$priority", queued).register(registry)
+    }
+
+    void workQueueWait(String priority, long nanos) {
+        registry.timer("work_queue.wait.$priority").record(nanos, TimeUnit.NANOSECONDS)
+    }
+
+    /**
+     * Counts photo loads that were saved by sharing a decode that another panel already had in progress.
+     */
+    void masterLoadShared() {
+        registry.counter('master_loads.shared').increment()
+    }
+
+    void prefetchHit() {
+        registry.counter('prefetch_hits').increment()
+    }
+
+    void prefetchMiss() {
+        registry.counter('prefetch_misses').increment()
+    }
+
+    void cacheHit(String cacheName) {
+        registry.counter("${cacheName}_cache.hits").increment()
+    }
+
+    void cacheMiss(String cacheName) {
+        registry.counter("${cacheName}_cache.misses").increment()
+    }
+
+    void cacheEviction(String cacheName) {
+        registry.counter("${cacheName}_cache.evictions").increment()
+    }
+
+    void cacheSize(String cacheName, Supplier<Number> bytesHeld) {
+        Gauge.builder("${cacheName}_cache.bytes", bytesHeld).register(registry)
+    }
+
+    void animationMemory(Supplier<Number> bytesHeld) {
+        Gauge.builder('animation_frames.bytes', bytesHeld).register(registry)
+    }
+
     void photoShown(PhotoData data) {
         registry.counter("photo_shown.rating.${data.rating}").increment()
         def path = Paths.get(data.relativePath)
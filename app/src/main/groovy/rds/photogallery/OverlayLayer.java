@@ -0,0 +1,109 @@
+package rds.photogallery;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * The text that's drawn over a photo, like its name, rating, and tags, rendered once into a translucent strip as wide
+ * as the panel and just tall enough to hold it. Painting then only has to draw the strip, instead of building up the
+ * strings and laying out the glyphs every time.
+ *
+ * A layer is only good for the data version, panel size, overlay flags, and font it was rendered with. Check it with
+ * {@link #isFor} and render a new one when that fails. Rating and tag edits bump the data version, so they show up on
+ * the next paint.
+ */
+class OverlayLayer {
+    static final int SHOW_NAME = 1;
+    static final int SHOW_RATING = 2;
+    static final int SHOW_TAGS = 4;
+    // Distance between the baselines of stacked lines of text, and from the bottom of the panel to the lowest one
+    private static final int LINE_HEIGHT = 12;
+    private static final int BOTTOM_MARGIN = 5;
+
+    private final PhotoData data;
+    private final int dataVersion;
+    private final Dimension panelSize;
+    private final int flags;
+    private final Font font;
+    // Null when there's nothing to draw
+    private final BufferedImage image;
+    private final int top;
+
+    private OverlayLayer(PhotoData data, Dimension panelSize, int flags, Font font, BufferedImage image, int top) {
+        this.data = data;
+        this.dataVersion = data == null ? 0 : data.getVersion();
+        this.panelSize = new Dimension(panelSize);
+        this.flags = flags;
+        this.font = font;
+        this.image = image;
+        this.top = top;
+    }
+
+    boolean isFor(PhotoData data, Dimension panelSize, int flags, Font font) {
+        return this.data == data && (data == null || dataVersion == data.getVersion()) &&
+                this.panelSize.equals(panelSize) && this.flags == flags && this.font.equals(font);
+    }
+
+    void drawOn(Graphics graphics) {
+        if (image != null) {
+            graphics.drawImage(image, 0, top, null);
+        }
+    }
+
+    static OverlayLayer render(PhotoData data, Dimension panelSize, int flags, Font font, FontMetrics fontMetrics) {
+        final boolean showName = (flags & SHOW_NAME) != 0 && data != null;
+        final boolean showRating = (flags & SHOW_RATING) != 0 && data != null;
+        final boolean showTags = (flags & SHOW_TAGS) != 0 && data != null;
+        final int lines = (showName ? 1 : 0) + (showRating ? 1 : 0) + (showTags ? 1 : 0);
+        if (lines == 0 || panelSize.width <= 0 || panelSize.height <= 0) {
+            return new OverlayLayer(data, panelSize, flags, font, null, 0);
+        }
+        final int stripHeight = Math.min(panelSize.height,
+                BOTTOM_MARGIN + LINE_HEIGHT * (lines - 1) + fontMetrics.getAscent() + fontMetrics.getDescent());
+        final int top = panelSize.height - stripHeight;
+        final BufferedImage image = new BufferedImage(panelSize.width, stripHeight, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setFont(font);
+            // Everything below is laid out relative to the bottom of the panel
+            graphics.translate(0, -top);
+            int baseline = panelSize.height - BOTTOM_MARGIN;
+            if (showTags) {
+                Iterable<String> allTags = Iterables.concat(data.getUserTags(), data.getImplicitTags());
+                graphics.setColor(Color.BLUE);
+                graphics.drawString(Joiner.on(", ").join(allTags), 5, baseline);
+                baseline -= LINE_HEIGHT;
+            }
+            if (showName) {
+                graphics.setColor(Color.BLUE);
+                graphics.drawString(data.getRelativePath(), 5, baseline);
+                baseline -= LINE_HEIGHT;
+            }
+            if (showRating) {
+                String text = ratingText(data.getRating());
+                graphics.setColor(Color.BLUE);
+                graphics.drawString(text, 10, baseline);
+                graphics.setColor(Color.GREEN);
+                graphics.drawString(text, panelSize.width - 35, baseline);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return new OverlayLayer(data, panelSize, flags, font, image, top);
+    }
+
+    static String ratingText(Integer rating) {
+        if (rating.equals(PhotoData.UNRATED)) {
+            return "U";
+        } else if (rating.equals(0)) {
+            return "X";
+        }
+        char[] chars = new char[rating];
+        Arrays.fill(chars, '*');
+        return new String(chars);
+    }
+}
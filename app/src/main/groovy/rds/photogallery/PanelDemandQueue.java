@@ -0,0 +1,68 @@
+package rds.photogallery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Passes things that need work along to a handler as soon as they need it. Whenever something changes in a way that
+ * calls for work, it gets pushed in here, and a dispatcher thread takes it right back out and hands it to the handler.
+ * Nothing is ever queued more than once at a time, no matter how many times it's pushed before the dispatcher gets to
+ * it. Something pushed while it's being handled is queued again, though, so a change that happens mid-handling is never
+ * lost.
+ *
+ * This replaces polling every panel on a schedule, which added latency to every change and kept waking up even when
+ * nothing was happening.
+ */
+public class PanelDemandQueue<T> {
+    private static final Logger log = LoggerFactory.getLogger(PanelDemandQueue.class);
+    private final BlockingQueue<T> queue = new LinkedBlockingQueue<>();
+    private final Set<T> pending = ConcurrentHashMap.newKeySet();
+    private final Consumer<T> handler;
+    private final Thread dispatcher;
+
+    public PanelDemandQueue(String name, Consumer<T> handler) {
+        this.handler = handler;
+        this.dispatcher = new Thread(this::dispatch, name);
+        this.dispatcher.setDaemon(true);
+    }
+
+    public void start() {
+        dispatcher.start();
+    }
+
+    public void stop() {
+        dispatcher.interrupt();
+    }
+
+    public void demand(T needsWork) {
+        if (pending.add(needsWork)) {
+            queue.add(needsWork);
+        }
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final T needsWork;
+            try {
+                needsWork = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Take it out of pending before handling, so that any new demand while it's handled queues it up again
+            pending.remove(needsWork);
+            try {
+                handler.accept(needsWork);
+            } catch (RuntimeException | Error e) {
+                // Nothing would ever be handled again if the dispatcher died, so even errors, like running out of
+                // memory loading one huge photo, just get logged
+                log.error("Failed to handle demand for {}", needsWork, e);
+            }
+        }
+    }
+}
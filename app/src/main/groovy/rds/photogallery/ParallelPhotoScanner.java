@@ -0,0 +1,126 @@
+package rds.photogallery;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds every photo under a root dir, listing many directories at once. On a network mount, walking a tree is mostly
+ * waiting on one directory listing after another, so listing them in parallel is where the time goes. Each directory
+ * is listed with its entries' attributes, so nothing has to be stat-ed a second time, and every subdirectory found is
+ * split off as its own task. Photos are handed to a listener as soon as they're found, from whichever thread found
+ * them, so the listener has to be thread safe.
+ */
+public class ParallelPhotoScanner {
+    private static final Logger log = LoggerFactory.getLogger(ParallelPhotoScanner.class);
+    private static final String[] PHOTO_EXTENSIONS = {".jpg", ".jpeg", ".png", ".gif"};
+    private final Path rootDir;
+    private final int parallelism;
+    private final Metrics metrics;
+
+    public interface Listener {
+        void photoFound(String relativePath, BasicFileAttributes attributes);
+    }
+
+    public ParallelPhotoScanner(Path rootDir, int parallelism, Metrics metrics) {
+        this.rootDir = rootDir;
+        this.parallelism = parallelism;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Scans the whole tree, blocking until it's done. Returns the number of photos found.
+     */
+    public long scan(Listener listener) {
+        return scan(listener, () -> false);
+    }
+
+    /**
+     * Scans the tree like above, but gives up as soon as it can once stopped says so. Directories already being listed
+     * are finished, but nothing more is listed after that, and what was found so far is all that's counted.
+     */
+    public long scan(Listener listener, BooleanSupplier stopped) {
+        final AtomicLong found = new AtomicLong();
+        final long started = System.nanoTime();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ListDirectory(rootDir, listener, stopped, found));
+        } finally {
+            pool.shutdown();
+        }
+        metrics.photoScan(found.get(), System.nanoTime() - started);
+        return found.get();
+    }
+
+    /**
+     * Tells whether a file name is one of the photo types the app shows. This gets called for every file in the
+     * library, so it compares the ends of names in place instead of making a lowercase copy of each one.
+     */
+    public static boolean isPhotoFileName(String name) {
+        for (String extension : PHOTO_EXTENSIONS) {
+            if (name.regionMatches(true, name.length() - extension.length(), extension, 0, extension.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class ListDirectory extends RecursiveAction {
+        private final Path dir;
+        private final Listener listener;
+        private final BooleanSupplier stopped;
+        private final AtomicLong found;
+
+        ListDirectory(Path dir, Listener listener, BooleanSupplier stopped, AtomicLong found) {
+            this.dir = dir;
+            this.listener = listener;
+            this.stopped = stopped;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped.getAsBoolean()) {
+                return;
+            }
+            final List<ListDirectory> subdirectories = new ArrayList<>();
+            try {
+                // Only one level down. Directories at that level come through visitFile, and each gets its own task.
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isDirectory()) {
+                            subdirectories.add(new ListDirectory(file, listener, stopped, found));
+                        } else if (attributes.isRegularFile() && isPhotoFileName(file.getFileName().toString()) &&
+                                !App.isRewrite(file)) {
+                            found.incrementAndGet();
+                            listener.photoFound(
+                                    FilenameUtils.separatorsToUnix(rootDir.relativize(file).toString()), attributes);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        log.info("Couldn't read {} while scanning photos", file, e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                log.info("Couldn't list {} while scanning photos", dir, e);
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package rds.photogallery
 
+import java.awt.Dimension
+
 /**
  * Knows how to get the content for a photo. The app only deals with a photo's metadata until the content is needed
  * because loading content is slow and resource-hungry.
  */
 interface PhotoContentLoader {
     CompletePhoto load(String photoRelativePath)
-    CompletePhoto getToolkitImage(String photoRelativePath)
+
+    /**
+     * Loads a photo that's going to be shown at no more than the given size. The loader is free to skip detail that
+     * wouldn't survive being scaled down that far, so the result can be much smaller than the photo itself, though
+     * never smaller than the target size.
+     */
+    CompletePhoto load(String photoRelativePath, Dimension targetSize)
+
+    /**
+     * Loads an animated photo with every frame decoded and scaled to fit the target size. If all the frames wouldn't
+     * fit in the given memory allowance, some are dropped to make them fit. A photo that turns out to have only one
+     * frame comes back as a still photo.
+     */
+    CompletePhoto loadAnimation(String photoRelativePath, Dimension targetSize, long memoryAllowanceBytes)
 }
@@ -25,6 +25,8 @@ public class PhotoData {
     private String path;
     private List<String> userTags = new ArrayList<>();
     private List<String> implicitTags = new ArrayList<>();
+    // Goes up whenever anything that gets displayed changes, so anything drawn from this data knows when it's stale
+    private volatile int version;
 
     public PhotoData(String path) {
         this.path = path;
@@ -113,6 +115,7 @@ public class PhotoData {
 
     public void setRating(Integer rating) {
         this.rating = rating;
+        version++;
     }
 
     public Collection<String> getAllTags() {
@@ -128,6 +131,7 @@ public class PhotoData {
 
     public void setUserTags(List<String> userTags) {
         this.userTags = Collections.unmodifiableList(userTags);
+        version++;
     }
 
     public List<String> getImplicitTags() {
@@ -136,6 +140,11 @@ public class PhotoData {
 
     public void setImplicitTags(List<String> implicitTags) {
         this.implicitTags = implicitTags;
+        version++;
+    }
+
+    public int getVersion() {
+        return version;
     }
 
     @Override
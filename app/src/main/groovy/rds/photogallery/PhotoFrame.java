@@ -33,6 +33,8 @@ public class PhotoFrame {
     private final List<Function<PhotoFrame, Void>> disposeListeners = new ArrayList<>();
     private final AtomicInteger panelCount = new AtomicInteger();
     private final List<HotKey> hotkeys = new ArrayList<>();
+    // Draws the panels when the current frame is rendering actively, otherwise null
+    private ActiveRenderer activeRenderer;
 
     public PhotoFrame(String name, PersistentFrameState frameState) {
         this.name = name;
@@ -59,6 +61,11 @@ public class PhotoFrame {
         final JFrame result = new JFrame();
         result.setTitle("Photo Gallery " + name);
         result.setContentPane(mainPanel);
+        // Active rendering draws over the whole frame, so it has to wait until there are no controls to show
+        final ActiveRenderer renderer = frameConfiguration.isActiveRendering() && frameConfiguration.isDistractionFree()
+                ? new ActiveRenderer(name, result, photoPanels) : null;
+        activeRenderer = renderer;
+        result.setIgnoreRepaint(renderer != null);
         int rows = frameConfiguration.getRows();
         int columns = frameConfiguration.getColumns();
         // Interestingly, while GridLayout essentially ignores its configured number of columns, it requires it in the
@@ -70,6 +77,9 @@ public class PhotoFrame {
         // number of panels are there. We can do that with a no-op modify. It will arrange the panels according to the
         // current frame configuration.
         modifyGridLayout(0, 0);
+        for (PhotoPanel photoPanel : photoPanels) {
+            photoPanel.setActiveRenderer(renderer);
+        }
         // ONLY after the panels are added, tell them what they need to be showing.
         setShowingRatings(getCurrentFrameConfiguration().isShowingRatings());
         setShowingNames(getCurrentFrameConfiguration().isShowingNames());
@@ -81,8 +91,18 @@ public class PhotoFrame {
         result.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         // Watch for user closing frames and notify listeners
         result.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                if (renderer != null) {
+                    renderer.start();
+                }
+            }
+
             @Override
             public void windowClosed(WindowEvent e) {
+                if (renderer != null) {
+                    renderer.stop();
+                }
                 for (Function<PhotoFrame, Void> disposeListener : disposeListeners) {
                     disposeListener.apply(PhotoFrame.this);
                 }
@@ -148,6 +168,8 @@ public class PhotoFrame {
     private void addHotKeys() {
         addHotKey("D", "Toggle window decoration", e ->
                 setDistractionFree(!getCurrentFrameConfiguration().isDistractionFree()));
+        addHotKey("A", "Toggle active rendering", e ->
+                setActiveRendering(!getCurrentFrameConfiguration().isActiveRendering()));
         addHotKey("F", "Toggle full screen", e -> {
             boolean wasFullScreen = frameState.isFullScreen();
             frameState.setFullScreen(!wasFullScreen);
@@ -204,6 +226,13 @@ public class PhotoFrame {
         this.theFrame.setVisible(true);
     }
 
+    public void setActiveRendering(boolean activeRendering) {
+        getCurrentFrameConfiguration().setActiveRendering(activeRendering);
+        safeDispose();
+        this.theFrame = newJFrameForPhotoFrame();
+        this.theFrame.setVisible(true);
+    }
+
     public void addHotKey(String keyStroke, String description, ActionListener listener) {
         mainPanel.registerKeyboardAction(listener, KeyStroke.getKeyStroke(keyStroke), JComponent.WHEN_IN_FOCUSED_WINDOW);
         hotkeys.add(new HotKey(keyStroke, description));
@@ -260,6 +289,7 @@ public class PhotoFrame {
         if (panelDiff > 0) {
             for (int i = 0; i < panelDiff; i++) {
                 PhotoPanel photoPanel = new PhotoPanel(this.name + ":panel" + panelCount.incrementAndGet());
+                photoPanel.setActiveRenderer(activeRenderer);
                 photoPanels.add(photoPanel);
                 mainDisplayArea.add(photoPanel);
                 changedPanels.add(photoPanel);
@@ -0,0 +1,171 @@
+package rds.photogallery;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the photos each panel has shown, so the panel can step back through them and forward again. Each panel
+ * keeps its last few photos, and while there's memory for it, they're kept already scaled, so going back to one is just
+ * a matter of putting it on screen again. Once the memory limit is reached, the least recently used photos are dropped
+ * across all panels, but their paths stay in the history, so they can still be loaded again.
+ *
+ * Like a browser's history, showing something new after going back throws away whatever was ahead.
+ *
+ * It's keyed by whatever stands for a panel, which is a {@link PhotoPanel} everywhere but in tests.
+ */
+public class PhotoHistory<K> {
+    private final int length;
+    private final long maxBytes;
+    private final Metrics metrics;
+    private final Map<K, Ring> rings = new LinkedHashMap<>();
+    // Entries still holding a photo, in access order, so iteration starts with the least recently used one
+    private final LinkedHashMap<Entry, Boolean> retained = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesHeld;
+
+    /**
+     * A photo a panel has shown. The photo itself is null if it's been dropped to save memory, and then it has to be
+     * loaded again by its path.
+     */
+    public static class Entry {
+        public final String path;
+        private CompletePhoto photo;
+
+        Entry(String path, CompletePhoto photo) {
+            this.path = path;
+            this.photo = photo;
+        }
+
+        public CompletePhoto getPhoto() {
+            return photo;
+        }
+    }
+
+    private static class Ring {
+        final List<Entry> entries = new ArrayList<>();
+        // The entry on display, or -1 when there's nothing yet
+        int cursor = -1;
+        // The entry last stepped to, which isn't on display until it's recorded, or -1 if there isn't one
+        int pending = -1;
+    }
+
+    public PhotoHistory(int length, long maxBytes, Metrics metrics) {
+        this.length = length;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        metrics.cacheSize("history", this::getBytesHeld);
+    }
+
+    /**
+     * Notes a photo that was just shown. If it's the one last stepped to, the history moves there. If it's that one or
+     * the one already on display, like after reloading it for a new size, it's updated in place. Otherwise, it's added
+     * after the one on display.
+     */
+    public synchronized void record(K key, CompletePhoto photo) {
+        Ring ring = rings.computeIfAbsent(key, k -> new Ring());
+        if (ring.pending >= 0 && ring.entries.get(ring.pending).path.equals(photo.getRelativePath())) {
+            ring.cursor = ring.pending;
+        }
+        ring.pending = -1;
+        if (ring.cursor >= 0) {
+            Entry current = ring.entries.get(ring.cursor);
+            if (current.path.equals(photo.getRelativePath())) {
+                release(current);
+                retain(current, photo);
+                evictOverBudget();
+                return;
+            }
+        }
+        while (ring.entries.size() > ring.cursor + 1) {
+            release(ring.entries.remove(ring.entries.size() - 1));
+        }
+        Entry entry = new Entry(photo.getRelativePath(), null);
+        ring.entries.add(entry);
+        retain(entry, photo);
+        while (ring.entries.size() > length) {
+            release(ring.entries.remove(0));
+        }
+        ring.cursor = ring.entries.size() - 1;
+        evictOverBudget();
+    }
+
+    /**
+     * Steps back to the photo shown before the current one, or returns null if there's nothing further back. The
+     * history doesn't count it as on display until it's recorded, so if it never makes it to the screen, the history
+     * is still where it was. Stepping again before then goes on from it, though.
+     */
+    public synchronized Entry back(K key) {
+        return step(key, -1);
+    }
+
+    /**
+     * Steps forward to the photo that was shown after the current one, before going back to it. Returns null if this
+     * is the newest one. Like {@link #back}, it's only on display once it's recorded.
+     */
+    public synchronized Entry forward(K key) {
+        return step(key, 1);
+    }
+
+    public synchronized void forget(K key) {
+        Ring ring = rings.remove(key);
+        if (ring != null) {
+            ring.entries.forEach(this::release);
+        }
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    private Entry step(K key, int direction) {
+        Ring ring = rings.get(key);
+        if (ring == null) {
+            return null;
+        }
+        int position = (ring.pending >= 0 ? ring.pending : ring.cursor) + direction;
+        if (position < 0 || position >= ring.entries.size()) {
+            return null;
+        }
+        ring.pending = position;
+        Entry entry = ring.entries.get(position);
+        if (entry.photo == null) {
+            metrics.cacheMiss("history");
+        } else {
+            // Touch it, so it's the last to be dropped
+            retained.get(entry);
+            metrics.cacheHit("history");
+        }
+        return entry;
+    }
+
+    private void retain(Entry entry, CompletePhoto photo) {
+        long photoBytes = PhotoTools.photoBytes(photo);
+        if (photoBytes > maxBytes) {
+            return;
+        }
+        entry.photo = photo;
+        retained.put(entry, Boolean.TRUE);
+        bytesHeld += photoBytes;
+    }
+
+    private void release(Entry entry) {
+        if (entry.photo != null) {
+            bytesHeld -= PhotoTools.photoBytes(entry.photo);
+            entry.photo = null;
+            retained.remove(entry);
+        }
+    }
+
+    private void evictOverBudget() {
+        Iterator<Entry> eldest = retained.keySet().iterator();
+        while (bytesHeld > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            bytesHeld -= PhotoTools.photoBytes(entry.photo);
+            entry.photo = null;
+            eldest.remove();
+            metrics.cacheEviction("history");
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package rds.photogallery;
 
-import com.google.common.base.Joiner;
-import com.google.common.collect.Iterables;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,14 +7,13 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
 import java.awt.image.ImageProducer;
+import java.awt.image.VolatileImage;
 import java.awt.image.renderable.RenderableImageProducer;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Arrays;
 
 /**
  * Shows a single photo. It's told which photo to display at any given time and doesn't try to do anything but display
@@ -34,16 +31,23 @@ public class PhotoPanel extends JPanel {
     private boolean showName;
     private boolean showRating;
     private boolean showTags;
-    // Gif animation relies on supplying an observer to any of the painting or drawing methods. There's an animation
-    // thread that calls back to the imageUpdate() method to let it know to repaint with the new animation frame. That
-    // means this panel needs to get that callback so it can do the painting. However, it also seems that the lifecycle
-    // of the animation thread is tied to the given observer, so if you give this panel as the observer, the threads
-    // never terminate, since this panel lasts forever (or at least until the frame is reconfigured). When that happens,
-    // you end up with a ton of image animator threads, which seem to still be sending updates, and it fills up the
-    // heap. To avoid this, we can create a specific observer object for each gif when it needs to be visible. This
-    // object will relay imageUpdate() calls to the panel and be dereferenced when the gif is no longer shown so that it
-    // can be garbage collected. In practice, this seems to make the image animator threads terminate pretty quickly.
-    private ImageObserver myGifObserver;
+    // The photo, centered on black with overlays on top, exactly as it goes on screen. It's only redrawn when something
+    // that shows up in it changes, so that most repaints are a single, accelerated blit. These are only touched while
+    // painting, which happens on the event thread, or on the frame's render thread when it's rendering actively.
+    private VolatileImage surface;
+    private CompletePhoto surfacePhoto;
+    // The frame drawn, when the photo is animated
+    private BufferedImage surfaceImage;
+    private int surfaceOverlayFlags;
+    private int surfaceDataVersion;
+    // The text drawn over the photo, rendered ahead of time. Also only touched while painting.
+    private OverlayLayer overlayLayer;
+    // The biggest image of the current photo this panel has been given. While the panel is being resized, it's scaled
+    // to fit until a properly sized one arrives, and scaling down from the biggest one looks the least bad. It's let
+    // go once a full quality image that fits arrives, so it doesn't hold on to a big image nobody needs anymore.
+    private volatile CompletePhoto interimSource;
+    // When set, this panel is only a region of its frame's layout, and the renderer draws it along with the rest
+    private volatile ActiveRenderer activeRenderer;
 
     public PhotoPanel(String name) {
         this.name = name;
@@ -54,12 +58,19 @@ public class PhotoPanel extends JPanel {
         if (!this.isVisible()) {
             log.info("You wasted your time getting here!");
         }
-        // Release the former gif observer so it and the photo can be GC'd.
-        this.myGifObserver = null;
+        final CompletePhoto biggest = interimSource;
+        if (!photo.isPreview() && photo.getImage() != null && PhotoTools.imageFits(photo.getImage(), getSize())) {
+            interimSource = null;
+        } else if (biggest == null || photo.getImage() == null || biggest.getImage() == null ||
+                !biggest.getRelativePath().equals(photo.getRelativePath()) ||
+                pixelCount(photo.getImage()) >= pixelCount(biggest.getImage())) {
+            interimSource = photo;
+        }
         this.photo = photo;
-        if (photo.getGif() != null) {
-            this.myGifObserver = (img, infoflags, x, y, width, height) ->
-                    PhotoPanel.this.imageUpdate(img, infoflags, x, y, width, height);
+        if (photo.getAnimation() != null) {
+            App.getInstance().getAnimationClock().play(this, photo.getAnimation());
+        } else {
+            App.getInstance().getAnimationClock().stop(this);
         }
     }
 
@@ -71,89 +82,172 @@ public class PhotoPanel extends JPanel {
      * Returns true if this panel's currently visible photo is sized correctly for the panel.
      */
     public boolean imageFitsPanel() {
-        // gifs get sized locally, so there's nothing to check for
-        if (photo.getGif() != null) {
-            return true;
+        // Animation frames are all scaled alike, so the first one stands in for the rest
+        return PhotoTools.imageFits(photo.getImage(), this.getSize());
+    }
+
+    /**
+     * Hands drawing this panel over to a frame's renderer, or back to Swing when given null.
+     */
+    public void setActiveRenderer(ActiveRenderer activeRenderer) {
+        this.activeRenderer = activeRenderer;
+        repaint();
+    }
+
+    /**
+     * Hands drawing back to Swing, but only if the given renderer is still the one drawing this panel. Frames are
+     * rebuilt with a new renderer before the old one has stopped.
+     */
+    public void releaseActiveRenderer(ActiveRenderer stopped) {
+        if (activeRenderer == stopped) {
+            setActiveRenderer(null);
+        }
+    }
+
+    /**
+     * Layouts place panels through here, on the event thread, so it's where an active renderer finds out the panels
+     * have moved.
+     */
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        super.setBounds(x, y, width, height);
+        final ActiveRenderer renderer = activeRenderer;
+        if (renderer != null) {
+            renderer.layoutChanged();
+        }
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        final ActiveRenderer renderer = activeRenderer;
+        if (renderer == null) {
+            super.repaint(tm, x, y, width, height);
+        } else {
+            renderer.requestRender();
         }
-        BufferedImage image = photo.getImage();
-        int imageWidth = image.getWidth();
-        int myWidth = this.getWidth();
-        int imageHeight = image.getHeight();
-        int myHeight = this.getHeight();
-        return (imageWidth == myWidth && imageHeight <= myHeight) ||
-                (imageHeight == myHeight && imageWidth <= myWidth);
     }
 
     @Override
     public void paint(Graphics g) {
+        final ActiveRenderer renderer = activeRenderer;
+        if (renderer != null) {
+            // Whatever Swing just drew here, the renderer has to draw over it
+            renderer.requestRender();
+            return;
+        }
+        render(g);
+    }
+
+    /**
+     * Draws this panel. Swing calls this by way of paint().
+     */
+    public void render(Graphics g) {
+        render(g, getSize(), getGraphicsConfiguration());
+    }
+
+    /**
+     * Draws this panel as if it were the given size, on the given screen. An active renderer calls this from its own
+     * thread, with the geometry it last took from the event thread, since a component's own geometry is only safe to
+     * read there. The configuration can be null when there's no screen, and then it's drawn without a surface.
+     */
+    public void render(Graphics g, Dimension size, GraphicsConfiguration configuration) {
         if (photo == null) {
             return;
         }
         // Use these values for everything, in case of concurrent updates of the current "photo" value. I.e.
         // "this.photo" should never be referenced after this point.
-        final BufferedImage image = photo.getImage();
-        final Image gifImage = photo.getGif();
-        final PhotoData photoData = photo.getData();
-        App.metrics().time("paint photo panel", () -> {
-            if (photo.getGif() != null) {
-                paintGif(g, gifImage, photoData);
-            } else {
-                paintNonGif(g, image, photoData);
-            }
+        final CompletePhoto shownPhoto = photo;
+        final AnimatedImage animation = shownPhoto.getAnimation();
+        final BufferedImage image = animation == null ? shownPhoto.getImage()
+                : animation.getFrame(App.getInstance().getAnimationClock().currentFrame(this, animation));
+        final PhotoData photoData = shownPhoto.getData();
+        App.metrics().allocationOf("paint photo panel", () -> {
+            App.metrics().time("paint photo panel", () ->
+                    paintPhoto(g, size, configuration, shownPhoto, image, photoData));
+            return null;
         });
     }
 
-    private void paintGif(Graphics g, Image gifImage, PhotoData photoData) {
-        super.paint(g);
-        fillBlack(g, getBounds());
-        final int myWidth = getWidth();
-        final int myHeight = getHeight();
-        final int imageWidth = gifImage.getWidth(myGifObserver);
-        if (imageWidth == -1) {
-            // Image not fully available yet, just draw what we have to get it loaded, I guess
-            g.drawImage(gifImage, 0, 0, myGifObserver);
-        } else {
-            final int imageHeight = gifImage.getHeight(myGifObserver);
-            final double widthRatio = (double) imageWidth / (double) myWidth;
-            final double heightRatio = (double) imageHeight / (double) myHeight;
-            final int newWidth;
-            final int newHeight;
-            if (widthRatio > heightRatio) {
-                final double widthScale = (double) myWidth / (double) imageWidth;
-                newWidth = myWidth;
-                newHeight = (int) (imageHeight * widthScale);
-            } else {
-                final double heightScale = (double) myHeight / (double) imageHeight;
-                newWidth = (int) (imageWidth * heightScale);
-                newHeight = myHeight;
-            }
-            final Point centerPosition = findCenterPosition(
-                    new Dimension(newWidth, newHeight),
-                    new Dimension(myWidth, myHeight));
-            g.drawImage(gifImage, centerPosition.x, centerPosition.y, newWidth, newHeight, myGifObserver);
-            drawActiveOverlays(photoData, g);
+    private void paintPhoto(Graphics g, Dimension size, GraphicsConfiguration graphicsConfiguration,
+                            CompletePhoto shownPhoto, BufferedImage image, PhotoData photoData) {
+        final int width = size.width;
+        final int height = size.height;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (graphicsConfiguration == null) {
+            composePhoto(g, size, shownPhoto, image, photoData);
+            return;
         }
+        final int overlayFlags = overlayFlags();
+        final int dataVersion = photoData == null ? 0 : photoData.getVersion();
+        // A volatile image can lose its contents at any time, like when the display mode changes, so this is the usual
+        // loop of validating it, redrawing it if needed, and checking that it wasn't lost in the meantime.
+        do {
+            boolean redraw = shownPhoto != surfacePhoto || image != surfaceImage ||
+                    overlayFlags != surfaceOverlayFlags || dataVersion != surfaceDataVersion;
+            int validation = surface == null
+                    ? VolatileImage.IMAGE_INCOMPATIBLE : surface.validate(graphicsConfiguration);
+            if (validation == VolatileImage.IMAGE_INCOMPATIBLE || surface.getWidth() != width ||
+                    surface.getHeight() != height) {
+                if (surface != null) {
+                    surface.flush();
+                }
+                surface = graphicsConfiguration.createCompatibleVolatileImage(width, height);
+                redraw = true;
+            } else if (validation == VolatileImage.IMAGE_RESTORED) {
+                redraw = true;
+            }
+            if (redraw) {
+                Graphics surfaceGraphics = surface.createGraphics();
+                try {
+                    composePhoto(surfaceGraphics, size, shownPhoto, image, photoData);
+                } finally {
+                    surfaceGraphics.dispose();
+                }
+                surfacePhoto = shownPhoto;
+                surfaceImage = image;
+                surfaceOverlayFlags = overlayFlags;
+                surfaceDataVersion = dataVersion;
+                App.metrics().panelSurfaceRebuilt();
+            }
+            g.drawImage(surface, 0, 0, null);
+        } while (surface.contentsLost());
     }
 
-    private void paintNonGif(Graphics g, BufferedImage image, PhotoData photoData) {
-        BufferedImage backBuffer = getGraphicsConfiguration().createCompatibleImage(getWidth(), getHeight());
-        Graphics backBufferGraphics = backBuffer.getGraphics();
-        fillBlack(backBufferGraphics, getBounds());
+    private void composePhoto(Graphics backBufferGraphics, Dimension size, CompletePhoto shownPhoto,
+                              BufferedImage image, PhotoData photoData) {
+        fillBlack(backBufferGraphics, new Rectangle(size));
         // Ideally, this image will have already been scaled for this panel, but if the frame is getting resized, or
         // the frame layout is being modified, panels can be a different size than their image until a new one is
         // given to them. If the image fits, draw it. If not, scale it right here to fit the panel. It'll be lower
         // quality, but at least it fits visually until a new image can be delivered.
-        if (imageFitsPanel()) {
+        if (PhotoTools.imageFits(image, size)) {
             // Image was scaled to this panel, so just draw it
-            Point centerPosition = findCenterPosition(new Dimension(image.getWidth(null), image.getHeight(null)), this.getSize());
+            Point centerPosition = findCenterPosition(
+                    new Dimension(image.getWidth(null), image.getHeight(null)), size);
             backBufferGraphics.drawImage(image, centerPosition.x, centerPosition.y, null);
         } else {
-            // Image is wrong size for this panel, so let the controller know, and scale it to match.
-            App.getInstance().getController().panelImageSizeIsWrong(this);
-            int imageWidth = image.getWidth();
-            int myWidth = this.getWidth();
-            int imageHeight = image.getHeight();
-            int myHeight = this.getHeight();
+            // Image is wrong size for this panel, so let the controller know, and scale it to match, starting from the
+            // biggest image of this photo there is. Bilinear is cheap enough to keep up while the panel is being
+            // resized, and it's only on screen until the controller delivers one that fits.
+            if (SwingUtilities.isEventDispatchThread()) {
+                App.getInstance().getController().panelImageSizeIsWrong(this);
+            } else {
+                SwingUtilities.invokeLater(() -> App.getInstance().getController().panelImageSizeIsWrong(this));
+            }
+            final CompletePhoto biggest = interimSource;
+            final BufferedImage source;
+            if (shownPhoto.getAnimation() == null && biggest != null && biggest.getImage() != null &&
+                    biggest.getRelativePath().equals(shownPhoto.getRelativePath())) {
+                source = biggest.getImage();
+            } else {
+                source = image;
+            }
+            int imageWidth = source.getWidth();
+            int myWidth = size.width;
+            int imageHeight = source.getHeight();
+            int myHeight = size.height;
             double imageRatio = (double) imageWidth / imageHeight;
             double panelRatio = (double) myWidth / myHeight;
             final int newWidth;
@@ -165,60 +259,36 @@ public class PhotoPanel extends JPanel {
                 newHeight = myHeight;
                 newWidth = (int) (imageWidth * ((double) newHeight / imageHeight));
             }
-            Point centerPosition = findCenterPosition(new Dimension(newWidth, newHeight), this.getSize());
-            backBufferGraphics.drawImage(image, centerPosition.x, centerPosition.y, newWidth, newHeight, null);
+            Point centerPosition = findCenterPosition(new Dimension(newWidth, newHeight), size);
+            ((Graphics2D) backBufferGraphics).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            backBufferGraphics.drawImage(source, centerPosition.x, centerPosition.y, newWidth, newHeight, null);
         }
-        drawActiveOverlays(photoData, backBufferGraphics);
-        g.drawImage(backBuffer, 0, 0, null);
-        backBufferGraphics.dispose();
+        drawActiveOverlays(photoData, backBufferGraphics, size);
     }
 
-    private void drawActiveOverlays(PhotoData photoData, Graphics graphics) {
-        if (showTags) {
-            graphics.setColor(Color.BLUE);
-            if (photoData != null) {
-                Iterable<String> allTags = Iterables.concat(photoData.getUserTags(), photoData.getImplicitTags());
-                String tagString = Joiner.on(", ").join(allTags);
-                graphics.drawString(tagString, 5, getHeight() - 5);
-            }
-        }
-        if (showName) {
-            graphics.setColor(Color.BLUE);
-            int height = getHeight() - 5;
-            if (showTags) {
-                height -= 12;
-            }
-            if (photoData != null) {
-                graphics.drawString(photoData.getRelativePath(), 5, height);
-            }
+    private static long pixelCount(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    private int overlayFlags() {
+        return (showName ? OverlayLayer.SHOW_NAME : 0) | (showRating ? OverlayLayer.SHOW_RATING : 0) |
+                (showTags ? OverlayLayer.SHOW_TAGS : 0);
+    }
+
+    private void drawActiveOverlays(PhotoData photoData, Graphics graphics, Dimension size) {
+        final int overlayFlags = overlayFlags();
+        if (overlayFlags == 0) {
+            return;
         }
-        if (showRating) {
-            String text;
-            if (photoData.getRating().equals(PhotoData.UNRATED)) {
-                text = "U";
-            } else if (photoData.getRating().equals(0)) {
-                text = "X";
-            } else {
-                int stars = photoData.getRating();
-                char[] chars = new char[stars];
-                Arrays.fill(chars, '*');
-                text = new String(chars);
-            }
-            int height = getHeight() - 5;
-            if (showName) {
-                height -= 12;
-            }
-            if (showTags) {
-                height -= 12;
-            }
-            graphics.setColor(Color.BLUE);
-            graphics.drawString(text, 10, height);
-            graphics.setColor(Color.GREEN);
-            graphics.drawString(text, getWidth() - 35, height);
+        final Font font = getFont();
+        if (overlayLayer == null || !overlayLayer.isFor(photoData, size, overlayFlags, font)) {
+            overlayLayer = OverlayLayer.render(photoData, size, overlayFlags, font, getFontMetrics(font));
+            App.metrics().overlayLayerRendered();
         }
+        overlayLayer.drawOn(graphics);
     }
 
-
     public void setShowingNames(boolean b) {
         this.showName = b;
         repaint();
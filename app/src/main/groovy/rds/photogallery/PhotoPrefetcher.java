@@ -0,0 +1,178 @@
+package rds.photogallery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Keeps a few photos loaded and scaled ahead of time for each panel, so that when a panel changes photos, the new one
+ * can be shown right away instead of making the user watch while it goes through the whole load pipeline. Photos are
+ * drawn from the photo rotation in advance and scaled to the panel's size at the time they're loaded. If the panel
+ * changes size in the meantime, the photo's path is still good, but it'll have to be loaded again.
+ *
+ * The number of photos kept per panel and the total memory they can use are both limited by settings, though the
+ * number per panel can be adjusted on the fly by the {@link AdaptivePacer}.
+ */
+public class PhotoPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(PhotoPrefetcher.class);
+    private final PhotosController controller;
+    private final IntSupplier depth;
+    private final long memoryBudgetBytes;
+    private final Map<PhotoPanel, Deque<CompletePhoto>> readyPhotos = new ConcurrentHashMap<>();
+    private final Map<PhotoPanel, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    // Photos that are ready, plus a guess at the size of each one still loading, so a top up can't overshoot
+    private final AtomicLong bytesHeld = new AtomicLong();
+    // Bumped when the rotation changes, so loads drawn from the old one are thrown away when they finish
+    private final AtomicInteger generation = new AtomicInteger();
+    // Guards adding and removing panels, and adding finished photos, so a photo can't be counted against the budget
+    // after its panel's photos have been dropped
+    private final Object lock = new Object();
+
+    public PhotoPrefetcher(PhotosController controller, IntSupplier depth, long memoryBudgetBytes) {
+        this.controller = controller;
+        this.depth = depth;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Starts loading photos for the panel until it has as many ready or in progress as it's allowed. Each load reserves
+     * room in the memory budget for a photo the size of the panel when it starts, so it stops short of the budget
+     * instead of finding out it went over when the loads finish. Panels the controller isn't managing are left alone,
+     * since they'd never take what's loaded for them.
+     */
+    public void topUp(PhotoPanel panel) {
+        final Deque<CompletePhoto> ready;
+        final AtomicInteger loading;
+        synchronized (lock) {
+            if (!controller.isManaging(panel)) {
+                return;
+            }
+            ready = readyPhotos.computeIfAbsent(panel, p -> new ConcurrentLinkedDeque<>());
+            loading = inFlight.computeIfAbsent(panel, p -> new AtomicInteger());
+        }
+        final Dimension size = panel.getSize();
+        if (size.width <= 0 || size.height <= 0) {
+            // Panel hasn't been laid out yet. It'll get topped up again after its first delivery.
+            return;
+        }
+        final long reservedBytes = (long) size.width * size.height * 4;
+        while (ready.size() + loading.get() < depth.getAsInt() && reserve(reservedBytes)) {
+            loading.incrementAndGet();
+            final int startedGeneration = generation.get();
+            App.getInstance().submitWork(WorkPriority.SPECULATIVE, () -> {
+                try {
+                    prefetchOne(panel, ready, size, reservedBytes, startedGeneration);
+                } finally {
+                    loading.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private void prefetchOne(PhotoPanel panel, Deque<CompletePhoto> ready, Dimension size, long reservedBytes,
+                             int startedGeneration) {
+        // Whatever happens, the reservation is given back, and the photo's real size is counted if it's kept
+        try {
+            final String path = controller.nextFromRotation();
+            final CompletePhoto photo;
+            try {
+                photo = controller.producePhoto(panel, path, size, () -> !isCurrent(panel, startedGeneration));
+            } catch (Exception e) {
+                log.info("Failed to prefetch {} for {}", path, panel, e);
+                return;
+            }
+            if (photo == null) {
+                return;
+            }
+            synchronized (lock) {
+                // Checked again here, since once the panel's photos have been dropped, nothing would drop this one
+                if (readyPhotos.get(panel) != ready || generation.get() != startedGeneration) {
+                    return;
+                }
+                bytesHeld.addAndGet(PhotoTools.photoBytes(photo));
+                ready.add(photo);
+            }
+            log.debug("Prefetched {} for {}", path, panel);
+        } finally {
+            bytesHeld.addAndGet(-reservedBytes);
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        long held;
+        do {
+            held = bytesHeld.get();
+            if (held + bytes > memoryBudgetBytes) {
+                return false;
+            }
+        } while (!bytesHeld.compareAndSet(held, held + bytes));
+        return true;
+    }
+
+    /**
+     * Takes the next prefetched photo for the panel, or returns null if there isn't one ready. The photo may not fit
+     * the panel anymore if the panel has been resized since it was loaded, so check before showing it.
+     */
+    public CompletePhoto take(PhotoPanel panel) {
+        Deque<CompletePhoto> ready = readyPhotos.get(panel);
+        if (ready == null) {
+            return null;
+        }
+        CompletePhoto photo = ready.poll();
+        if (photo == null) {
+            App.metrics().prefetchMiss();
+            return null;
+        }
+        bytesHeld.addAndGet(-PhotoTools.photoBytes(photo));
+        App.metrics().prefetchHit();
+        return photo;
+    }
+
+    /**
+     * Drops everything prefetched for a panel that's going away.
+     */
+    public void forget(PhotoPanel panel) {
+        synchronized (lock) {
+            Deque<CompletePhoto> ready = readyPhotos.remove(panel);
+            inFlight.remove(panel);
+            if (ready != null) {
+                drain(ready);
+            }
+        }
+    }
+
+    /**
+     * Drops everything prefetched for every panel, and anything still loading once it's done, then starts over. This
+     * is for when the rotation changes, so panels don't go on showing photos drawn from the old one.
+     */
+    public void clear() {
+        final List<PhotoPanel> panels;
+        synchronized (lock) {
+            generation.incrementAndGet();
+            readyPhotos.values().forEach(this::drain);
+            panels = new ArrayList<>(readyPhotos.keySet());
+        }
+        panels.forEach(this::topUp);
+    }
+
+    private void drain(Deque<CompletePhoto> ready) {
+        CompletePhoto photo;
+        while ((photo = ready.poll()) != null) {
+            bytesHeld.addAndGet(-PhotoTools.photoBytes(photo));
+        }
+    }
+
+    private boolean isCurrent(PhotoPanel panel, int startedGeneration) {
+        return readyPhotos.containsKey(panel) && generation.get() == startedGeneration;
+    }
+}
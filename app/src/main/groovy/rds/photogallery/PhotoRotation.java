@@ -1,8 +1,42 @@
 package rds.photogallery;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Provides an infinite stream of photos to display. It's like an Iterator but never ends.
  */
 public interface PhotoRotation {
     String next();
+
+    /**
+     * Gets the next several photos at once, like when every panel is changed together. Rotations that have to go to
+     * some store for each photo should override this to get them all in one trip.
+     */
+    default List<String> next(int count) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(next());
+        }
+        return result;
+    }
+
+    /**
+     * Lets the rotation know a photo's rating was changed, for rotations that keep track of ratings themselves.
+     */
+    default void ratingChanged(String relativePath, int newRating) {
+    }
+
+    /**
+     * Saves anything the rotation is holding on to, for rotations that don't save as they go, but keeps it usable.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Called when the rotation is switched out for another one, or the app shuts down, so it can save anything it's
+     * holding on to.
+     */
+    default void close() {
+    }
 }
@@ -3,18 +3,39 @@ package rds.photogallery;
 import org.imgscalr.Scalr;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
  * Holds useful methods for working with photos. It's Java instead of Groovy for the same reason as {@link PhotoPanel}.
  */
 public class PhotoTools {
+    private static final int TRANSFORM_BAND_HEIGHT = 64;
+
     /**
      * Resizes a given image to fit in a given size using native Java libs to do so. So far, I haven't been impressed
      * with its performance. Something like imgproxy is far more efficient.
      */
     public static BufferedImage resizeImage(BufferedImage loadedImage, Dimension maxImageSize, Function<Object[], Void> logger) {
+        return resizeImage(loadedImage, maxImageSize, Scalr.Method.ULTRA_QUALITY, logger);
+    }
+
+    public static BufferedImage resizeImage(BufferedImage loadedImage, Dimension maxImageSize, Scalr.Method method,
+                                            Function<Object[], Void> logger) {
+        return resizeImage(loadedImage, maxImageSize, method, null, logger);
+    }
+
+    /**
+     * Same as above, but the result is in the pixel format of the given screen, like the one a panel is on, instead of
+     * the default screen's. The configuration can be null to use the default screen.
+     */
+    public static BufferedImage resizeImage(BufferedImage loadedImage, Dimension maxImageSize, Scalr.Method method,
+                                            GraphicsConfiguration configuration, Function<Object[], Void> logger) {
         // Scalr has an automatic mode, but it wasn't shrinking landscape images enough. It seemed to decide that it was
         // "better" to not fit inside the size I told it, and they came out too tall.
         final BufferedImage result;
@@ -26,7 +47,7 @@ public class PhotoTools {
         } else {
             resizeMode = Scalr.Mode.FIT_TO_HEIGHT;
         }
-        result = Scalr.resize(loadedImage, Scalr.Method.ULTRA_QUALITY, resizeMode, maxImageSize.width, maxImageSize.height, Scalr.OP_ANTIALIAS);
+        result = Scalr.resize(loadedImage, method, resizeMode, maxImageSize.width, maxImageSize.height, Scalr.OP_ANTIALIAS);
         // I've had lots of trouble with scaling an image to fit inside a certain dimension.
         if (result.getWidth() > maxImageSize.getWidth() || result.getHeight() > maxImageSize.getHeight()) {
             if (result.getWidth() > maxImageSize.width || result.getHeight() > maxImageSize.height) {
@@ -37,6 +58,262 @@ public class PhotoTools {
                         loadedImage.getWidth() + "x" + loadedImage.getHeight()});
             }
         }
+        // Scalr hands back whatever type it worked in, which isn't always what the display wants
+        return toDisplayFormat(result, configuration);
+    }
+
+    /**
+     * Turns an image to its EXIF orientation and scales it to fit in a given size, all in one drawing pass. The only
+     * raster allocated is the one that's returned, as opposed to rotating and then resizing, which means a full size
+     * rotated copy plus whatever intermediate images the resize needs along the way. It's a single bicubic pass, so it
+     * relies on the decoder having subsampled big photos down to within a few times the target size first.
+     */
+    public static BufferedImage transformImage(BufferedImage image, int orientation, Dimension maxImageSize,
+                                               Function<Object[], Void> logger) {
+        return transformImage(image, orientation, maxImageSize, false, logger);
+    }
+
+    /**
+     * Same as above, but can trade quality for speed, with a bilinear pass instead of a bicubic one. That's meant for
+     * previews that are only on screen until the full quality image is ready.
+     */
+    public static BufferedImage transformImage(BufferedImage image, int orientation, Dimension maxImageSize,
+                                               boolean fast, Function<Object[], Void> logger) {
+        return transformImage(image, orientation, maxImageSize, fast, null, Transparency.OPAQUE, logger);
+    }
+
+    /**
+     * Same as above, but the result is in the pixel format of the given screen, or the default screen if it's null, and
+     * it keeps the given transparency instead of being opaque, for images like GIF frames that have see-through parts.
+     */
+    public static BufferedImage transformImage(BufferedImage image, int orientation, Dimension maxImageSize,
+                                               boolean fast, GraphicsConfiguration configuration, int transparency,
+                                               Function<Object[], Void> logger) {
+        final int sourceWidth = image.getWidth();
+        final int sourceHeight = image.getHeight();
+        final boolean sideways = isSideways(orientation);
+        final int uprightWidth = sideways ? sourceHeight : sourceWidth;
+        final int uprightHeight = sideways ? sourceWidth : sourceHeight;
+        final double widthRatio = (double) uprightWidth / maxImageSize.getWidth();
+        final double heightRatio = (double) uprightHeight / maxImageSize.getHeight();
+        final int width;
+        final int height;
+        if (widthRatio > heightRatio) {
+            width = maxImageSize.width;
+            height = Math.max(1, Math.min(maxImageSize.height, (int) Math.round(uprightHeight / widthRatio)));
+        } else {
+            height = maxImageSize.height;
+            width = Math.max(1, Math.min(maxImageSize.width, (int) Math.round(uprightWidth / heightRatio)));
+        }
+        // How far one pixel along the source's x and y axes goes in the output, wherever those axes end up pointing
+        final double xScale = (double) (sideways ? height : width) / sourceWidth;
+        final double yScale = (double) (sideways ? width : height) / sourceHeight;
+        final AffineTransform transform;
+        switch (orientation) {
+            case 1:
+                transform = new AffineTransform(xScale, 0, 0, yScale, 0, 0);
+                break;
+            case 2:
+                transform = new AffineTransform(-xScale, 0, 0, yScale, width, 0);
+                break;
+            case 3:
+                transform = new AffineTransform(-xScale, 0, 0, -yScale, width, height);
+                break;
+            case 4:
+                transform = new AffineTransform(xScale, 0, 0, -yScale, 0, height);
+                break;
+            case 5:
+                transform = new AffineTransform(0, xScale, yScale, 0, 0, 0);
+                break;
+            case 6:
+                transform = new AffineTransform(0, xScale, -yScale, 0, width, 0);
+                break;
+            case 7:
+                transform = new AffineTransform(0, -xScale, -yScale, 0, width, height);
+                break;
+            case 8:
+                transform = new AffineTransform(0, -xScale, yScale, 0, 0, height);
+                break;
+            default:
+                throw new RuntimeException("Unexpected image rotation: " + orientation);
+        }
+        final BufferedImage result = createDisplayImage(configuration, width, height, transparency);
+        final Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, fast
+                    ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, fast
+                    ? RenderingHints.VALUE_RENDER_SPEED : RenderingHints.VALUE_RENDER_QUALITY);
+            // Draw in bands, so that a cancelled load doesn't have to wait for the whole image to finish
+            for (int y = 0; y < height; y += TRANSFORM_BAND_HEIGHT) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Interrupted while transforming image");
+                }
+                graphics.setClip(0, y, width, Math.min(TRANSFORM_BAND_HEIGHT, height - y));
+                graphics.drawImage(image, transform, null);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        if (!imageFits(result, maxImageSize)) {
+            logger.apply(new Object[] {
+                    "I tried to transform an image to fit in {} but got an image of size {}. Original image was {}.",
+                    maxImageSize.width + "x" + maxImageSize.height,
+                    result.getWidth() + "x" + result.getHeight(),
+                    sourceWidth + "x" + sourceHeight});
+        }
         return result;
     }
+
+    /**
+     * Returns true if the image is scaled to exactly fit the given size, meaning it fills the size in one dimension
+     * and doesn't exceed it in the other.
+     */
+    public static boolean imageFits(BufferedImage image, Dimension size) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        return (imageWidth == size.width && imageHeight <= size.height) ||
+                (imageHeight == size.height && imageWidth <= size.width);
+    }
+
+    /**
+     * Creates an opaque image in the display's own pixel format, so drawing it to the screen is a straight copy instead
+     * of a conversion, and it can be accelerated. Every image that's going to be shown should end up in this format.
+     * This uses the default screen's format. Where the panel an image is for is known, use the one that takes its
+     * configuration, since screens don't all have the same format.
+     */
+    public static BufferedImage createDisplayImage(int width, int height) {
+        return createDisplayImage(null, width, height, Transparency.OPAQUE);
+    }
+
+    /**
+     * Same as above, but for the given screen, or the default one if it's null, and with the given transparency, which
+     * is one of the {@link Transparency} constants.
+     */
+    public static BufferedImage createDisplayImage(GraphicsConfiguration configuration, int width, int height,
+                                                   int transparency) {
+        if (configuration == null) {
+            configuration = displayConfiguration();
+        }
+        if (configuration == null) {
+            return new BufferedImage(width, height, transparency == Transparency.OPAQUE
+                    ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+        return configuration.createCompatibleImage(width, height, transparency);
+    }
+
+    /**
+     * Returns the image as is if it's already in the display's pixel format, or else a copy of it that is. Decoders
+     * pick whatever format suits them, like 3-byte BGR for jpegs or indexed color for some pngs, and anything like that
+     * falls off of the fast path for both scaling and drawing.
+     */
+    public static BufferedImage toDisplayFormat(BufferedImage image) {
+        return toDisplayFormat(image, null);
+    }
+
+    /**
+     * Same as above, but for the given screen, or the default one if it's null.
+     */
+    public static BufferedImage toDisplayFormat(BufferedImage image, GraphicsConfiguration configuration) {
+        if (isDisplayFormat(image, configuration)) {
+            return image;
+        }
+        BufferedImage result = createDisplayImage(configuration, image.getWidth(), image.getHeight(),
+                Transparency.OPAQUE);
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    public static boolean isDisplayFormat(BufferedImage image) {
+        return isDisplayFormat(image, null);
+    }
+
+    public static boolean isDisplayFormat(BufferedImage image, GraphicsConfiguration configuration) {
+        BufferedImage sample = displaySample(configuration);
+        return image.getType() == sample.getType() && image.getType() != BufferedImage.TYPE_CUSTOM &&
+                image.getColorModel().equals(sample.getColorModel());
+    }
+
+    // One per screen, and there are only ever a few of those
+    private static final Map<GraphicsConfiguration, BufferedImage> displaySamples = new ConcurrentHashMap<>();
+    private static volatile BufferedImage headlessSample;
+
+    /**
+     * A tiny image in the screen's format, for comparing other images' formats against.
+     */
+    private static BufferedImage displaySample(GraphicsConfiguration configuration) {
+        if (configuration == null) {
+            configuration = displayConfiguration();
+        }
+        if (configuration == null) {
+            BufferedImage sample = headlessSample;
+            if (sample == null) {
+                sample = createDisplayImage(1, 1);
+                headlessSample = sample;
+            }
+            return sample;
+        }
+        return displaySamples.computeIfAbsent(configuration,
+                screen -> createDisplayImage(screen, 1, 1, Transparency.OPAQUE));
+    }
+
+    private static GraphicsConfiguration displayConfiguration() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * Returns the number of bytes held by the image's pixel data. This is what matters when deciding how many images
+     * we can afford to keep around.
+     */
+    public static long imageBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Returns the number of bytes of pixel data a photo holds on to, counting every frame if it's animated.
+     */
+    public static long photoBytes(CompletePhoto photo) {
+        if (photo.getAnimation() != null) {
+            return photo.getAnimation().getBytes();
+        }
+        return photo.getImage() == null ? 0 : imageBytes(photo.getImage());
+    }
+
+    /**
+     * Works out how much a photo can be subsampled while it's being decoded, given the size it'll end up being shown
+     * at and its EXIF orientation. Subsampling just skips pixels, which aliases badly if it's pushed all the way to the
+     * target size, so it stops short at twice the target size and leaves the rest to a proper resize.
+     */
+    public static int decodeSubsampling(int width, int height, Dimension targetSize, int orientation) {
+        if (targetSize.width <= 0 || targetSize.height <= 0) {
+            return 1;
+        }
+        final double scale;
+        if (isSideways(orientation)) {
+            scale = 2 * Math.min(targetSize.getHeight() / width, targetSize.getWidth() / height);
+        } else {
+            scale = 2 * Math.min(targetSize.getWidth() / width, targetSize.getHeight() / height);
+        }
+        if (scale >= 1) {
+            return 1;
+        }
+        return (int) Math.floor(1 / scale);
+    }
+
+    /**
+     * Returns true if the EXIF orientation means the stored image is turned a quarter turn from upright, so its width
+     * and height swap when it's displayed.
+     */
+    public static boolean isSideways(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
 }
@@ -1,26 +1,28 @@
 package rds.photogallery;
 
-import org.apache.commons.imaging.ImageReadException;
-import org.apache.commons.imaging.Imaging;
-import org.apache.commons.imaging.common.ImageMetadata;
-import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
-import org.apache.commons.imaging.formats.tiff.TiffField;
-import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.swing.SwingUtilities;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -33,10 +35,31 @@ public class PhotosController {
     public static final Logger log = LoggerFactory.getLogger(PhotosController.class);
     private PhotoRotation photoRotation;
     private static final int changeDelayMillis = 7500;
+    // Decides the resize quality, prefetch depth, and change delay, adapting them to how fast photos are delivered
+    private final AdaptivePacer pacer;
     // States of tracked panels, used to manage photo changes, resizes, and so on
     private final Map<PhotoPanel, PhotoPanelState> photoPanelStates = new ConcurrentHashMap<>();
     private Timer timer;
     private AutoChangeTimerTask autoChangeTimerTask;
+    private final PhotoPrefetcher prefetcher;
+    // Photos that were recently scaled for some panel, so they don't have to be loaded again to be reshown
+    private final ScaledImageCache scaledImageCache;
+    // Scaled photos kept on local disk, so they don't have to come across the network again
+    private final DerivativeStore derivativeStore;
+    // What each panel has shown, so it can go back to it
+    private final PhotoHistory<PhotoPanel> history;
+    // Photos being decoded right now, so that panels landing on the same photo at once share the work
+    private final MasterPhotoLoads masterLoads = new MasterPhotoLoads(
+            (path, size) -> App.getInstance().getPhotoContentLoader().load(path, size), App.metrics());
+    private final boolean fusedTransform;
+    private final boolean progressiveResize;
+    private final int resizeQuietMillis;
+    private final int batchRevealDeadlineMillis;
+    // Rotations aren't necessarily thread safe, and the prefetcher draws from them on worker threads
+    private final Object rotationLock = new Object();
+    // Panels whose state just changed in a way that means something needs to be loaded for them
+    private final PanelDemandQueue<PhotoPanelState> demandQueue =
+            new PanelDemandQueue<>("panel-demand", this::handleDemand);
 
     static class PhotoPanelState {
         enum State { INIT, NEW_ASSIGNMENT, IDLE, FAILED, DIRTY }
@@ -47,20 +70,78 @@ public class PhotosController {
         int failureCount;
         long photoAssigned;
         long photoDelivered;
+        // Bumped with every assignment, so work scheduled for one assignment can tell if it's been replaced
+        volatile int assignment;
         AtomicInteger activeLoaders = new AtomicInteger();
         // Should this be part of the State enum?
         boolean sticky;
-
-        public PhotoPanelState(PhotoPanel photoPanel, String photoPath) {
+        // A photo for the assigned path that was already loaded ahead of time, if there is one
+        CompletePhoto prefetched;
+        // Told whenever this state changes in a way that needs something loaded
+        private final Consumer<PhotoPanelState> demandListener;
+        // The load currently running or waiting to run for this panel, if any
+        volatile PhotoLoad inFlight;
+        // How urgently this panel needs its next load, going by what last changed about it
+        volatile WorkPriority priority;
+        // Whether anything of the assigned photo has been shown yet, and whether it's been shown at full quality
+        boolean firstPixelShown;
+        boolean finalQualityShown;
+        // The assigned photo was already in memory, so how long it took to show says nothing about how loads are doing
+        boolean shownFromMemory;
+        // A reload for a new panel size that's waiting for the size to stop changing. Guarded by this state.
+        ScheduledFuture<?> pendingRefresh;
+        Dimension pendingRefreshSize;
+        int pendingRefreshAssignment;
+        int refreshGeneration;
+        // The batch this panel's assignment was made in, when every panel was changed together
+        volatile RevealBatch batch;
+
+        public PhotoPanelState(PhotoPanel photoPanel, String photoPath, Consumer<PhotoPanelState> demandListener) {
             this.state = State.INIT;
             this.photoPanel = photoPanel;
-            assignPhotoPath(photoPath);
+            this.demandListener = demandListener;
+            assignPhotoPath(photoPath, WorkPriority.EMPTY_PANEL);
+        }
+
+        public void assignPhotoPath(String photoPath, WorkPriority priority) {
+            assignPhotoPath(photoPath, priority, null);
+        }
+
+        public void assignPhotoPath(String photoPath, WorkPriority priority, RevealBatch batch) {
+            assign(photoPath, priority, batch, null);
+        }
+
+        public void assignPrefetchedPhoto(CompletePhoto photo, WorkPriority priority) {
+            assignPrefetchedPhoto(photo, priority, null);
+        }
+
+        public void assignPrefetchedPhoto(CompletePhoto photo, WorkPriority priority, RevealBatch batch) {
+            assign(photo.getRelativePath(), priority, batch, photo);
         }
 
-        public void assignPhotoPath(String photoPath) {
+        private void assign(String photoPath, WorkPriority priority, RevealBatch batch, CompletePhoto ready) {
             assignedPhotoPath = photoPath;
+            final RevealBatch previous = this.batch;
+            this.batch = batch;
+            if (previous != null && previous != batch) {
+                // Whatever it was going to show for the old batch won't be shown now, so don't hold the rest up for it
+                previous.release(this);
+            }
+            this.priority = priority;
+            // Set before the demand goes out, so whoever handles it sees the photo is already here
+            prefetched = ready;
+            firstPixelShown = false;
+            finalQualityShown = false;
+            shownFromMemory = false;
             photoAssigned = System.currentTimeMillis();
+            assignment++;
             this.state = State.NEW_ASSIGNMENT;
+            // Whatever's loading is for an old assignment, so stop it and free the worker for this one
+            PhotoLoad load = inFlight;
+            if (load != null && !photoPath.equals(load.path)) {
+                load.cancel();
+            }
+            demandListener.accept(this);
         }
 
         public boolean isSettled() {
@@ -80,8 +161,10 @@ public class PhotosController {
                 App.metrics().photoDeliveryTime(System.currentTimeMillis() - photoAssigned);
                 this.state = State.IDLE;
             } else {
+                // The controller schedules the refresh, once the panel's size settles down
                 log.info("Delivered image isn't a size match, dirtying state!");
                 this.state = State.DIRTY;
+                this.priority = WorkPriority.REFRESH;
             }
         }
 
@@ -89,20 +172,219 @@ public class PhotosController {
             log.info("Failed to load {} for {}", path, panel);
             failureCount++;
             e.printStackTrace();
+            // There's no telling how long it'll take to get something to show, so it shows it on its own, whenever
+            leaveBatch();
             this.state = State.FAILED;
+            this.priority = WorkPriority.EMPTY_PANEL;
+            demandListener.accept(this);
+        }
+
+        void leaveBatch() {
+            final RevealBatch left = batch;
+            if (left != null) {
+                batch = null;
+                left.release(this);
+            }
         }
 
         public void setNeedsRefresh() {
             this.state = State.DIRTY;
+            this.priority = WorkPriority.REFRESH;
+            demandListener.accept(this);
+        }
+    }
+
+    /**
+     * A load of a photo for a panel, which can be cancelled at any point. If it hasn't started yet, it never will, and
+     * the canceller cleans up after it. If it's running, the worker is interrupted, which stops the decode, transform,
+     * or whatever else it's in the middle of, and the worker cleans up after itself. Whoever claims the load first,
+     * between the worker starting it and someone cancelling it, is the one responsible for cleaning up.
+     */
+    static class PhotoLoad {
+        final PhotoPanelState state;
+        final String path;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        volatile Future<?> future;
+        volatile boolean cancelled;
+        volatile long startedNanos;
+
+        PhotoLoad(PhotoPanelState state, String path) {
+            this.state = state;
+            this.path = path;
+        }
+
+        /**
+         * Called by the worker as it starts the load. Returns false if it was cancelled before it got the chance.
+         */
+        boolean start() {
+            startedNanos = System.nanoTime();
+            return claimed.compareAndSet(false, true);
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (claimed.compareAndSet(false, true)) {
+                // It never started, so the worker will never get to clean up
+                if (future != null) {
+                    future.cancel(false);
+                }
+                finished();
+                App.metrics().loadCancelled(0);
+            } else if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        void finished() {
+            if (state.inFlight == this) {
+                state.inFlight = null;
+            }
+            state.activeLoaders.decrementAndGet();
+        }
+    }
+
+    /**
+     * Panels that were all given new photos at once, like by "next" on every panel. Photos that finish loading for
+     * them are held back until every panel in the batch has one, or until the deadline passes, and then they're all
+     * put on screen together. That way, the panels change as one instead of popping in one at a time.
+     */
+    class RevealBatch {
+        private final long startedNanos = System.nanoTime();
+        // All guarded by this batch
+        private final Set<PhotoPanelState> waitingOn;
+        private final Map<PhotoPanelState, CompletePhoto> held = new LinkedHashMap<>();
+        private boolean revealed;
+        private ScheduledFuture<?> deadline;
+
+        RevealBatch(Collection<PhotoPanelState> states) {
+            this.waitingOn = new HashSet<>(states);
+        }
+
+        synchronized void startDeadline() {
+            deadline = App.getInstance().schedule(this::reveal, batchRevealDeadlineMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Holds a panel's photo back until the batch is revealed. Returns false if the batch has already been revealed,
+         * in which case the photo should just be delivered.
+         */
+        boolean hold(PhotoPanelState state, CompletePhoto photo) {
+            synchronized (this) {
+                if (revealed) {
+                    return false;
+                }
+                held.put(state, photo);
+                waitingOn.remove(state);
+                if (!waitingOn.isEmpty()) {
+                    return true;
+                }
+            }
+            reveal();
+            return true;
+        }
+
+        /**
+         * Takes a panel out of the batch, along with any photo being held for it, so the batch doesn't wait on it. If
+         * it was the last one the batch was waiting on, the rest are revealed.
+         */
+        void release(PhotoPanelState state) {
+            synchronized (this) {
+                if (revealed) {
+                    return;
+                }
+                held.remove(state);
+                if (!waitingOn.remove(state) || !waitingOn.isEmpty()) {
+                    return;
+                }
+            }
+            reveal();
+        }
+
+        synchronized boolean isPending() {
+            return !revealed;
+        }
+
+        synchronized boolean isHolding(PhotoPanelState state) {
+            return held.containsKey(state);
+        }
+
+        void reveal() {
+            final Map<PhotoPanelState, CompletePhoto> toReveal;
+            final boolean complete;
+            synchronized (this) {
+                if (revealed) {
+                    return;
+                }
+                revealed = true;
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                toReveal = new LinkedHashMap<>(held);
+                complete = waitingOn.isEmpty();
+            }
+            // Everything's set in one go on the event thread, so the repaints all land in the same paint. Panels that
+            // are still loading deliver on their own from here on.
+            SwingUtilities.invokeLater(() -> {
+                for (Map.Entry<PhotoPanelState, CompletePhoto> entry : toReveal.entrySet()) {
+                    final PhotoPanelState state = entry.getKey();
+                    final CompletePhoto photo = entry.getValue();
+                    synchronized (this) {
+                        held.remove(state);
+                    }
+                    if (photoPanelStates.get(state.photoPanel) == state &&
+                            photo.getRelativePath().equals(state.assignedPhotoPath)) {
+                        deliver(state, photo);
+                    }
+                }
+                App.metrics().batchRevealed(System.nanoTime() - startedNanos, complete);
+            });
         }
     }
 
     public PhotosController(PhotoRotation photoRotation) {
         this.photoRotation = photoRotation;
+        this.fusedTransform = Boolean.parseBoolean(App.settings().asString(Settings.Setting.FUSED_TRANSFORM));
+        this.pacer = new AdaptivePacer(Boolean.parseBoolean(App.settings().asString(Settings.Setting.ADAPTIVE_PACING)),
+                App.settings().asInt(Settings.Setting.ADAPTIVE_TARGET_DELIVERY_MILLIS), changeDelayMillis,
+                App.settings().asInt(Settings.Setting.PREFETCH_DEPTH),
+                App.settings().asInt(Settings.Setting.ADAPTIVE_MAX_PREFETCH_DEPTH), fusedTransform, App.metrics());
+        this.prefetcher = new PhotoPrefetcher(this, pacer::prefetchDepth,
+                App.settings().asInt(Settings.Setting.PREFETCH_MEMORY_MEGABYTES) * 1024L * 1024L);
+        this.scaledImageCache = new ScaledImageCache("scaled_image",
+                App.settings().asInt(Settings.Setting.SCALED_IMAGE_CACHE_MEGABYTES) * 1024L * 1024L, App.metrics());
+        this.history = new PhotoHistory<>(App.settings().asInt(Settings.Setting.HISTORY_LENGTH),
+                App.settings().asInt(Settings.Setting.HISTORY_MEMORY_MEGABYTES) * 1024L * 1024L, App.metrics());
+        this.progressiveResize = Boolean.parseBoolean(App.settings().asString(Settings.Setting.PROGRESSIVE_RESIZE));
+        this.resizeQuietMillis = App.settings().asInt(Settings.Setting.RESIZE_QUIET_MILLIS);
+        this.batchRevealDeadlineMillis = App.settings().asInt(Settings.Setting.BATCH_REVEAL_DEADLINE_MILLIS);
+        this.derivativeStore = new DerivativeStore(
+                Paths.get(App.settings().asString(Settings.Setting.DERIVATIVE_CACHE_DIR)),
+                App.settings().asInt(Settings.Setting.DERIVATIVE_CACHE_MEGABYTES) * 1024L * 1024L, App.metrics());
     }
 
-    public void switchRotation(PhotoRotation photoRotation) {
-        this.photoRotation = photoRotation;
+    /**
+     * Switches to a new rotation. The old one saves what it has first, so the new one loads from there, and it goes on
+     * drawing while the new one is made, which can take a while for a big library. Photos it draws in the meantime are
+     * saved when it's closed, after the switch, so the new one might show a few of them again a little early.
+     */
+    public void switchRotation(Supplier<PhotoRotation> newRotation) {
+        final PhotoRotation old;
+        synchronized (rotationLock) {
+            old = photoRotation;
+        }
+        old.flush();
+        final PhotoRotation replacement = newRotation.get();
+        synchronized (rotationLock) {
+            photoRotation = replacement;
+        }
+        old.close();
+        prefetcher.clear();
+    }
+
+    public void ratingChanged(String relativePath, int newRating) {
+        synchronized (rotationLock) {
+            photoRotation.ratingChanged(relativePath, newRating);
+        }
     }
 
     public void managePanel(PhotoPanel panel) {
@@ -111,29 +393,50 @@ public class PhotosController {
 
     public void managePanels(Collection<PhotoPanel> panels) {
         for (PhotoPanel panel : panels) {
-            PhotoPanelState state = new PhotoPanelState(panel, photoRotation.next());
+            PhotoPanelState state = new PhotoPanelState(panel, nextFromRotation(), demandQueue::demand);
             photoPanelStates.put(panel, state);
+            // The first demand may have been handled before the state was tracked, in which case it was ignored
+            demandQueue.demand(state);
+            prefetcher.topUp(panel);
         }
     }
 
+    boolean isManaging(PhotoPanel panel) {
+        return photoPanelStates.containsKey(panel);
+    }
+
     public void unmanagePanel(PhotoPanel panel) {
         unmanagePanels(Collections.singletonList(panel));
     }
 
     public void unmanagePanels(Collection<PhotoPanel> panels) {
-        photoPanelStates.entrySet().removeIf(entry -> panels.contains(entry.getKey()));
+        photoPanelStates.entrySet().removeIf(entry -> {
+            if (!panels.contains(entry.getKey())) {
+                return false;
+            }
+            final PhotoPanelState state = entry.getValue();
+            state.leaveBatch();
+            // Nothing it loads has anywhere to go now
+            final PhotoLoad load = state.inFlight;
+            if (load != null) {
+                load.cancel();
+            }
+            return true;
+        });
+        panels.forEach(prefetcher::forget);
+        panels.forEach(history::forget);
+        panels.forEach(App.getInstance().getAnimationClock()::stop);
     }
 
     public void start() {
         timer = new Timer("Photo Changer", true);
         startAutoChanging();
-        // TODO: I really don't like this imperative way of populating panels, either. It should be more reactive as well.
-        App.getInstance().scheduleWithFixedDelay(submitNeeds(), 0, 100, TimeUnit.MILLISECONDS);
+        demandQueue.start();
     }
 
     public void startAutoChanging() {
         autoChangeTimerTask = new AutoChangeTimerTask();
-        timer.schedule(autoChangeTimerTask, changeDelayMillis);
+        timer.schedule(autoChangeTimerTask, pacer.changeDelayMillis());
     }
 
     public void stopAutoChanging() {
@@ -152,36 +455,114 @@ public class PhotosController {
         }
     }
 
+    /**
+     * Gets the next photo path from the current rotation. Everything that draws from the rotation should come through
+     * here.
+     */
+    String nextFromRotation() {
+        synchronized (rotationLock) {
+            return photoRotation.next();
+        }
+    }
+
+    /**
+     * Gets several photo paths from the current rotation in one go.
+     */
+    List<String> nextFromRotation(int count) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        synchronized (rotationLock) {
+            return photoRotation.next(count);
+        }
+    }
+
+    /**
+     * Gives a panel its next photo. If one was prefetched for the panel, it's used, so it can be shown right away.
+     */
+    private void assignNextPhoto(PhotoPanelState state, WorkPriority priority) {
+        CompletePhoto ready = prefetcher.take(state.photoPanel);
+        if (ready == null) {
+            state.assignPhotoPath(nextFromRotation(), priority);
+        } else {
+            state.assignPrefetchedPhoto(ready, priority);
+        }
+    }
+
     public void toggleSticky(PhotoPanel photoPanel) {
         PhotoPanelState state = photoPanelStates.get(photoPanel);
         state.sticky = !state.sticky;
     }
 
+    /**
+     * Moves a panel ahead to its next photo. If the panel has gone back in its history, this goes forward through the
+     * history again before drawing anything new from the rotation.
+     */
     public void nextPhotoEvenIfStickyFor(PhotoPanel photoPanel) {
-
+        PhotoPanelState state = photoPanelStates.get(photoPanel);
+        if (state == null) {
+            return;
+        }
+        PhotoHistory.Entry entry = history.forward(photoPanel);
+        if (entry == null) {
+            assignNextPhoto(state, WorkPriority.USER_CHANGE);
+        } else {
+            assignFromHistory(state, entry);
+        }
     }
 
+    /**
+     * Moves a panel back to the photo it showed before. That's usually still in memory, so it's shown right away.
+     */
     public void previousPhotoEvenIfStickyFor(PhotoPanel photoPanel) {
+        PhotoPanelState state = photoPanelStates.get(photoPanel);
+        if (state == null) {
+            return;
+        }
+        PhotoHistory.Entry entry = history.back(photoPanel);
+        if (entry != null) {
+            assignFromHistory(state, entry);
+        }
+    }
 
+    private void assignFromHistory(PhotoPanelState state, PhotoHistory.Entry entry) {
+        CompletePhoto photo = entry.getPhoto();
+        if (photo == null) {
+            // Fell out of memory, so it has to be loaded again
+            state.assignPhotoPath(entry.path, WorkPriority.USER_CHANGE);
+        } else {
+            state.assignPrefetchedPhoto(photo, WorkPriority.USER_CHANGE);
+        }
     }
 
     public void dispose() {
         timer.cancel();
+        demandQueue.stop();
+        // Otherwise, whatever the rotation hasn't saved yet is lost, and those photos come around again next run
+        synchronized (rotationLock) {
+            photoRotation.close();
+        }
     }
 
-    private ThrowableReporting.Runnable submitNeeds() {
-        return new ThrowableReporting.Runnable() {
-            @Override
-            public void doRun() {
-                for (PhotoPanelState state : photoPanelStates.values()) {
-                    if (!state.isSettled()) {
-                        if (compareStateToReality(state)) {
-                            log.info("Scheduled work for " + state.photoPanel);
-                        }
-                    }
-                }
+    private void handleDemand(PhotoPanelState state) {
+        // The panel may have gone away since it asked for work, and the work may have been done already
+        if (photoPanelStates.get(state.photoPanel) != state || state.isSettled()) {
+            return;
+        }
+        final RevealBatch batch = state.batch;
+        if (batch != null && batch.isHolding(state)) {
+            // Its photo is loaded and just waiting for the rest of the batch
+            return;
+        }
+        synchronized (state) {
+            if (state.state == PhotoPanelState.State.DIRTY && state.pendingRefresh != null) {
+                // The panel is still being resized. The refresh will come when it stops.
+                return;
             }
-        };
+        }
+        if (compareStateToReality(state)) {
+            log.info("Scheduled work for " + state.photoPanel);
+        }
     }
 
     private boolean compareStateToReality(final PhotoPanelState state) {
@@ -221,114 +602,276 @@ public class PhotosController {
             state.activeLoaders.decrementAndGet();
             return false;
         }
+        final CompletePhoto prefetched = state.prefetched;
+        if (prefetched != null && assignedPath.equals(prefetched.getRelativePath()) && fitsPanel(prefetched, panel)) {
+            // It's already loaded and sized, so there's no need to bother a worker with it
+            state.prefetched = null;
+            state.shownFromMemory = true;
+            try {
+                deliver(state, prefetched);
+            } finally {
+                state.activeLoaders.decrementAndGet();
+            }
+            return true;
+        }
+        final PhotoLoad load = new PhotoLoad(state, assignedPath);
         final Runnable fullfillTheNeed = () -> {
+            if (!load.start()) {
+                return;
+            }
             try {
-                final CompletePhoto photoToDeliver;
-                if (assignedPath.toLowerCase().endsWith(".gif")) {
-                    // rewrite stage
-                    final String rewritePath = App.metrics().timeAndReturn("rewrite detection", () ->
-                            App.getInstance().resolveRewrite(assignedPath));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                    // loading stage
-                    photoToDeliver = App.metrics().timeAndReturn("load photo", () ->
-                            App.getInstance().getPhotoContentLoader().getToolkitImage(rewritePath));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                } else {
-                    // rewrite stage
-                    final String rewritePath = App.metrics().timeAndReturn("rewrite detection", () ->
-                            App.getInstance().resolveRewrite(assignedPath));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                    // loading stage
-                    final CompletePhoto rawPhoto = App.metrics().timeAndReturn("load photo", () ->
-                            App.getInstance().getPhotoContentLoader().load(rewritePath));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                    // rotate stage
-                    BufferedImage rotatedImage = App.metrics().timeAndReturn("rotate photo", () ->
-                            rotateToOrientation(rawPhoto.getImage(), rewritePath));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                    // resize stage
-                    CompletePhoto rotatedPhoto = new CompletePhoto(assignedPath, rotatedImage);
-                    Function<Object[], Void> logger = objects -> {
-                        log.info("log this: " + Arrays.toString(objects));
-                        return null;
-                    };
-                    final BufferedImage resized = App.metrics().timeAndReturn("resize photo", () ->
-                            PhotoTools.resizeImage(rotatedPhoto.getImage(), panel.getSize(), logger));
-                    if (shouldStopFulfillment(assignedPath, state, panel)) {
-                        return;
-                    }
-                    photoToDeliver = new CompletePhoto(assignedPath, resized);
+                final CompletePhoto photoToDeliver = producePhoto(panel, assignedPath, panel.getSize(), () ->
+                        Thread.currentThread().isInterrupted() || shouldStopFulfillment(assignedPath, state, panel),
+                        preview -> {
+                            if (!load.cancelled && !shouldStopFulfillment(assignedPath, state, panel)) {
+                                deliverPreview(state, preview);
+                            }
+                        });
+                if (photoToDeliver == null || load.cancelled || shouldStopFulfillment(assignedPath, state, panel)) {
+                    return;
                 }
-                // deliver stage
-                panel.setPhoto(photoToDeliver);
-                panel.refresh();
-                state.photoIsDelivered(panel);
-                App.metrics().photoShown(photoToDeliver.getData());
+                deliver(state, photoToDeliver);
             } catch (Exception e) {
-                state.failure(panel, assignedPath, e);
+                // Being cancelled in the middle of something usually shows up as an exception, but it isn't a failure
+                if (!load.cancelled) {
+                    state.failure(panel, assignedPath, e);
+                }
             } finally {
-                state.activeLoaders.decrementAndGet();
+                if (load.cancelled) {
+                    App.metrics().loadCancelled(System.nanoTime() - load.startedNanos);
+                }
+                load.finished();
+                // Don't let a cancellation interrupt whatever this worker does next
+                Thread.interrupted();
+                // Anything that changed while this was loading was turned away, since a loader was active, so check
+                // again now that it's done.
+                if (!state.isSettled()) {
+                    demandQueue.demand(state);
+                }
             }
         };
-        App.getInstance().submitGeneralWork(fullfillTheNeed);
+        state.inFlight = load;
+        load.future = App.getInstance().submitWork(state.priority, fullfillTheNeed);
+        if (!assignedPath.equals(state.assignedPhotoPath)) {
+            // Reassigned while this was being submitted, and the reassignment may have missed it
+            load.cancel();
+        }
         return true;
     }
 
+    private void deliver(PhotoPanelState state, CompletePhoto photoToDeliver) {
+        if (photoPanelStates.get(state.photoPanel) != state) {
+            // The panel's gone, and recording it in the history would hold on to the panel and its photos for good
+            return;
+        }
+        final RevealBatch batch = state.batch;
+        if (batch != null && batch.hold(state, photoToDeliver)) {
+            return;
+        }
+        final PhotoPanel panel = state.photoPanel;
+        panel.setPhoto(photoToDeliver);
+        panel.refresh();
+        history.record(panel, photoToDeliver);
+        final long sinceAssigned = System.currentTimeMillis() - state.photoAssigned;
+        if (!state.firstPixelShown) {
+            state.firstPixelShown = true;
+            App.metrics().timeToFirstPixel(sinceAssigned);
+        }
+        if (!state.finalQualityShown) {
+            state.finalQualityShown = true;
+            App.metrics().timeToFinalQuality(sinceAssigned);
+        }
+        state.photoIsDelivered(panel);
+        if (state.isSettled() && !state.shownFromMemory) {
+            pacer.deliveryTook(sinceAssigned);
+        }
+        if (state.state == PhotoPanelState.State.DIRTY) {
+            scheduleRefresh(state);
+        }
+        App.metrics().photoShown(photoToDeliver.getData());
+        prefetcher.topUp(panel);
+    }
+
+    /**
+     * Puts a preview on screen while the full quality photo is still being made. The panel's state isn't settled by
+     * this. That waits for the real thing.
+     */
+    private void deliverPreview(PhotoPanelState state, CompletePhoto preview) {
+        if (photoPanelStates.get(state.photoPanel) != state) {
+            return;
+        }
+        final RevealBatch batch = state.batch;
+        if (batch != null && batch.isPending()) {
+            // A preview would give away the batch before it's revealed
+            return;
+        }
+        final PhotoPanel panel = state.photoPanel;
+        panel.setPhoto(preview);
+        panel.refresh();
+        if (!state.firstPixelShown) {
+            state.firstPixelShown = true;
+            App.metrics().timeToFirstPixel(System.currentTimeMillis() - state.photoAssigned);
+        }
+    }
+
+    private static boolean fitsPanel(CompletePhoto photo, PhotoPanel panel) {
+        return PhotoTools.imageFits(photo.getImage(), panel.getSize());
+    }
+
+    /**
+     * Takes a photo path through the rewrite, load, rotate, and resize stages, producing a photo that's ready to show
+     * in the panel at the given size. Between stages, it checks whether the work has been abandoned, and if so, it
+     * stops and returns null.
+     */
+    CompletePhoto producePhoto(PhotoPanel panel, String assignedPath, Dimension size, BooleanSupplier abandoned) {
+        return producePhoto(panel, assignedPath, size, abandoned, null);
+    }
+
+    /**
+     * Same as above, but if progressive resizing is on and the photo has to be decoded, a quickly scaled preview is
+     * handed to the given consumer before the full quality resize starts. It's never cached, since the real thing is
+     * right behind it. With a preview up, there's no hurry for the real thing, so a fused transform is always done at
+     * full quality after one, whatever the pacer says.
+     */
+    CompletePhoto producePhoto(PhotoPanel panel, String assignedPath, Dimension size, BooleanSupplier abandoned,
+                               Consumer<CompletePhoto> previewConsumer) {
+        final BufferedImage cached = scaledImageCache.get(assignedPath, size);
+        if (cached != null) {
+            return new CompletePhoto(assignedPath, cached);
+        }
+        // rewrite stage
+        final String rewritePath = App.metrics().timeAndReturn("rewrite detection", () ->
+                App.getInstance().resolveRewrite(assignedPath));
+        if (abandoned.getAsBoolean()) {
+            return null;
+        }
+        if (assignedPath.toLowerCase().endsWith(".gif")) {
+            // loading stage, which for an animation decodes and scales every frame. Animations skip the scaled image
+            // cache, the derivative store, and shared master loads on purpose. All of those hold one image per photo,
+            // and their budgets don't know about the animation budget, so a few GIFs could crowd out everything else.
+            final AnimationClock animationClock = App.getInstance().getAnimationClock();
+            final long allowance = animationClock.allowanceFor(panel);
+            final CompletePhoto animated = App.metrics().timeAndReturn("load animation", () ->
+                    App.getInstance().getPhotoContentLoader().loadAnimation(rewritePath, size, allowance));
+            if (animated.getAnimation() != null) {
+                animationClock.track(animated.getAnimation());
+            }
+            return animated;
+        }
+        // Scaled images are made in the pixel format of the screen the panel is on, which isn't always the default one
+        final GraphicsConfiguration screen = panel.getGraphicsConfiguration();
+        // derivative stage
+        final File originalFile = App.getInstance().resolvePhotoPath(rewritePath);
+        final DerivativeStore.Derivative derivative = App.metrics().timeAndReturn("load derivative", () ->
+                derivativeStore.get(originalFile, size));
+        if (derivative != null) {
+            final BufferedImage image = PhotoTools.toDisplayFormat(derivative.image, screen);
+            scaledImageCache.put(assignedPath, size, derivative.orientation, image);
+            return new CompletePhoto(assignedPath, image);
+        }
+        if (abandoned.getAsBoolean()) {
+            return null;
+        }
+        // loading stage, shared with any other panel loading the same photo at the same time
+        final MasterPhotoLoads.Master master = App.metrics().timeAndReturn("load photo", () ->
+                masterLoads.load(rewritePath, size));
+        if (abandoned.getAsBoolean()) {
+            return null;
+        }
+        final CompletePhoto rawPhoto = master.getDecoded();
+        final int orientation = rawPhoto.getOrientation();
+        // Another panel the same size may have finished with the shared master while this one waited on it
+        final BufferedImage alreadyScaled = scaledImageCache.peek(assignedPath, size, orientation);
+        if (alreadyScaled != null) {
+            return new CompletePhoto(assignedPath, alreadyScaled);
+        }
+        Function<Object[], Void> logger = objects -> {
+            log.info("log this: " + Arrays.toString(objects));
+            return null;
+        };
+        final boolean previewed = progressiveResize && previewConsumer != null;
+        if (previewed) {
+            // preview stage, with a bilinear pass or Scalr's fastest method, depending on how the real one is done
+            final CompletePhoto preview = new CompletePhoto(assignedPath, App.metrics().timeAndReturn("preview photo",
+                    () -> fusedTransform
+                            ? PhotoTools.transformImage(rawPhoto.getImage(), orientation, size, true, screen,
+                                    Transparency.OPAQUE, logger)
+                            : PhotoTools.resizeImage(master.rotated(this::rotateToOrientation), size,
+                                    Scalr.Method.SPEED, screen, logger)));
+            preview.setPreview(true);
+            previewConsumer.accept(preview);
+            if (abandoned.getAsBoolean()) {
+                return null;
+            }
+        }
+        final BufferedImage resized;
+        final long resizeStarted = System.nanoTime();
+        // Read once, since the pacer can change its mind partway through
+        final boolean fast = !previewed && pacer.fastTransform();
+        final Scalr.Method resizeMethod = pacer.resizeMethod();
+        if (fusedTransform) {
+            // transform stage, which rotates and resizes together
+            resized = App.metrics().allocationOf("transform photo fused", () ->
+                    App.metrics().timeAndReturn("transform photo", () ->
+                            PhotoTools.transformImage(rawPhoto.getImage(), orientation, size,
+                                    fast, screen, Transparency.OPAQUE, logger)));
+        } else {
+            resized = App.metrics().allocationOf("transform photo scalr", () -> {
+                // rotate stage, done once per master no matter how many sizes it's scaled to
+                BufferedImage rotatedImage = App.metrics().timeAndReturn("rotate photo", () ->
+                        master.rotated(this::rotateToOrientation));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Interrupted between rotating and resizing");
+                }
+                // resize stage
+                return App.metrics().timeAndReturn("resize photo", () ->
+                        PhotoTools.resizeImage(rotatedImage, size, resizeMethod, screen, logger));
+            });
+        }
+        pacer.resizeTook(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resizeStarted));
+        // What the pacer cut back on while things were slow is only good for now. Kept, it would go on being shown
+        // long after the pacer has gone back to full quality.
+        if (fusedTransform ? !fast : resizeMethod == Scalr.Method.ULTRA_QUALITY) {
+            scaledImageCache.put(assignedPath, size, orientation, resized);
+            App.getInstance().submitWork(WorkPriority.SPECULATIVE, () ->
+                    derivativeStore.put(originalFile, size, orientation, resized));
+        }
+        return new CompletePhoto(assignedPath, resized);
+    }
+
     private boolean shouldStopFulfillment(String pathLoading, PhotoPanelState state, PhotoPanel panel) {
-        boolean result = false;
         if (!pathLoading.equals(state.assignedPhotoPath)) {
+            // Don't settle the state here. It has a newer assignment that still needs to be loaded.
             log.info("Discarding in-process photo because it's no longer assigned to the panel");
-            result = true;
+            return true;
         }
         final CompletePhoto photoOnDisplay = panel.getPhotoOnDisplay();
-        if (photoOnDisplay != null && pathLoading.equals(photoOnDisplay.getRelativePath()) &&
-                panel.imageFitsPanel()) {
+        // A preview on display still needs the real thing
+        if (photoOnDisplay != null && !photoOnDisplay.isPreview() &&
+                pathLoading.equals(photoOnDisplay.getRelativePath()) && panel.imageFitsPanel()) {
             log.info("Discarding in-process photo because the panel already has it");
-            result = true;
-        }
-        if (result) {
             state.forceSettle("stopped fulfilling a need");
+            return true;
         }
-        return result;
-    }
-
-    private BufferedImage rotateToOrientation(BufferedImage image, String relativePath) {
-        try {
-            // TODO: requires local files
-            File imageFile = App.getInstance().resolvePhotoPath(relativePath);
-            ImageMetadata metadata1 = Imaging.getMetadata(imageFile);
-            // A GIF doesn't return any metadata
-            if (metadata1 == null) return image;
-            // A PNG seems to give a GenericImageMetadata, which I don't think I can work with
-            if (!(metadata1 instanceof JpegImageMetadata)) return image;
-            JpegImageMetadata metadata = (JpegImageMetadata) metadata1;
-            TiffField rotationField = metadata.findEXIFValue(TiffTagConstants.TIFF_TAG_ORIENTATION);
-            if (rotationField == null) return image;
-            int rotation = rotationField.getIntValue();
-            switch (rotation) {
-                case 1:
-                    return image;
-                case 8:
-                    return Scalr.rotate(image, Scalr.Rotation.CW_270, Scalr.OP_ANTIALIAS);
-                case 3:
-                    return Scalr.rotate(image, Scalr.Rotation.CW_180, Scalr.OP_ANTIALIAS);
-                case 6:
-                    return Scalr.rotate(image, Scalr.Rotation.CW_90, Scalr.OP_ANTIALIAS);
-                default:
-                    throw new RuntimeException("Unexpected image rotation: " + rotation);
-            }
-        } catch (ImageReadException | IOException e) {
-            throw new RuntimeException("Error reading image file to get metadata - maybe this shouldn't be fatal", e);
+        return false;
+    }
+
+    private BufferedImage rotateToOrientation(CompletePhoto photo) {
+        return rotateToOrientation(photo.getImage(), photo.getOrientation());
+    }
+
+    private BufferedImage rotateToOrientation(BufferedImage image, int rotation) {
+        switch (rotation) {
+            case 1:
+                return image;
+            case 8:
+                return Scalr.rotate(image, Scalr.Rotation.CW_270, Scalr.OP_ANTIALIAS);
+            case 3:
+                return Scalr.rotate(image, Scalr.Rotation.CW_180, Scalr.OP_ANTIALIAS);
+            case 6:
+                return Scalr.rotate(image, Scalr.Rotation.CW_90, Scalr.OP_ANTIALIAS);
+            default:
+                throw new RuntimeException("Unexpected image rotation: " + rotation);
         }
     }
 
@@ -350,11 +893,10 @@ public class PhotosController {
         }
         // Now, if that state has no loading activity, and if the state is settled, and if it's been sitting that way
         // for "a while", then assign it a new photo.
-        long aWhileAgo = System.currentTimeMillis() - 2500;
+        long aWhileAgo = System.currentTimeMillis() - pacer.settleMillis();
         if (oldestState.activeLoaders.get() == 0 && oldestState.isSettled() && oldestState.photoDelivered < aWhileAgo) {
-            String next = photoRotation.next();
-            log.info("Auto changing photo on " + oldestState.photoPanel + " to " + next);
-            oldestState.assignPhotoPath(next);
+            assignNextPhoto(oldestState, WorkPriority.AUTO_CHANGE);
+            log.info("Auto changing photo on " + oldestState.photoPanel + " to " + oldestState.assignedPhotoPath);
         }
     }
 
@@ -362,7 +904,28 @@ public class PhotosController {
         List<PhotoPanelState> unstickyStates = photoPanelStates.values().stream()
                 .filter(state -> !state.sticky)
                 .collect(Collectors.toList());
-        unstickyStates.forEach((it) -> it.assignPhotoPath(photoRotation.next()));
+        if (unstickyStates.isEmpty()) {
+            return;
+        }
+        final RevealBatch batch = new RevealBatch(unstickyStates);
+        // Use whatever's been prefetched, and then make one trip to the rotation for everything else
+        Map<PhotoPanelState, CompletePhoto> ready = new HashMap<>();
+        for (PhotoPanelState state : unstickyStates) {
+            CompletePhoto photo = prefetcher.take(state.photoPanel);
+            if (photo != null) {
+                ready.put(state, photo);
+            }
+        }
+        Iterator<String> paths = nextFromRotation(unstickyStates.size() - ready.size()).iterator();
+        batch.startDeadline();
+        for (PhotoPanelState state : unstickyStates) {
+            CompletePhoto photo = ready.get(state);
+            if (photo == null) {
+                state.assignPhotoPath(paths.next(), WorkPriority.USER_CHANGE, batch);
+            } else {
+                state.assignPrefetchedPhoto(photo, WorkPriority.USER_CHANGE, batch);
+            }
+        }
     }
 
     public void panelImageSizeIsWrong(PhotoPanel photoPanel) {
@@ -371,6 +934,44 @@ public class PhotosController {
             log.warn("Not tracking state for panel that reported in! {}", photoPanel);
             return;
         }
-        photoPanelState.setNeedsRefresh();
+        scheduleRefresh(photoPanelState);
+    }
+
+    /**
+     * Reloads the panel's photo for its current size, but only after the size has held still for a quiet period.
+     * Dragging a frame edge or changing the grid layout resizes panels many times a second, and reloading for every
+     * step along the way is wasted work. While waiting, the panel scales whatever it has to fit. If the panel gets a
+     * new photo in the meantime, the refresh is dropped, since the new photo is loaded for whatever size the panel is
+     * by then.
+     */
+    private void scheduleRefresh(PhotoPanelState state) {
+        final Dimension size = state.photoPanel.getSize();
+        final int assignment = state.assignment;
+        synchronized (state) {
+            if (state.pendingRefresh != null) {
+                if (size.equals(state.pendingRefreshSize) && assignment == state.pendingRefreshAssignment) {
+                    return;
+                }
+                // Still changing, or it's a different photo now, so the refresh that's waiting would be thrown away
+                state.pendingRefresh.cancel(false);
+                App.metrics().resizeReloadAvoided();
+            }
+            final int generation = ++state.refreshGeneration;
+            state.pendingRefreshSize = size;
+            state.pendingRefreshAssignment = assignment;
+            state.pendingRefresh = App.getInstance().schedule(() -> {
+                synchronized (state) {
+                    if (generation != state.refreshGeneration) {
+                        return;
+                    }
+                    state.pendingRefresh = null;
+                    state.pendingRefreshSize = null;
+                }
+                // Dirtying a new assignment would turn its load into a lower priority refresh
+                if (assignment == state.assignment) {
+                    state.setNeedsRefresh();
+                }
+            }, resizeQuietMillis, TimeUnit.MILLISECONDS);
+        }
     }
 }
@@ -272,7 +272,7 @@ class PopupListener extends MouseAdapter {
     private class ToggleStickyListener implements ActionListener {
         @Override
         void actionPerformed(ActionEvent e) {
-            controller.toggleSticky(photoPanel)
+            App.instance.controller.toggleSticky(photoPanel)
         }
     }
 
@@ -289,10 +289,10 @@ class PopupListener extends MouseAdapter {
         void actionPerformed(ActionEvent actionEvent) {
             switch (direction) {
                 case Direction.NEXT:
-                    controller.nextPhotoEvenIfStickyFor(photoPanel)
+                    App.instance.controller.nextPhotoEvenIfStickyFor(photoPanel)
                     break
                 case Direction.PREVIOUS:
-                    controller.previousPhotoEvenIfStickyFor(photoPanel)
+                    App.instance.controller.previousPhotoEvenIfStickyFor(photoPanel)
                     break
             }
         }
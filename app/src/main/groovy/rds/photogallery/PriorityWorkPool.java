@@ -0,0 +1,90 @@
+package rds.photogallery;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of worker threads that always starts the most urgent waiting work first, going by {@link WorkPriority}.
+ * Work of the same priority starts in the order it was submitted. Nothing running is ever preempted, so urgent work
+ * waits at most for a worker to finish what it's doing.
+ *
+ * Keeps a gauge of how much work is waiting, and a timer of how long work waited to start, for each priority.
+ */
+public class PriorityWorkPool {
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger[] queued = new AtomicInteger[WorkPriority.values().length];
+    // Breaks ties between work of the same priority, so it runs first come, first served
+    private final AtomicLong sequence = new AtomicLong();
+    private final Metrics metrics;
+
+    public PriorityWorkPool(int threads, ThreadFactory threadFactory, Metrics metrics) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), threadFactory);
+        this.metrics = metrics;
+        for (WorkPriority priority : WorkPriority.values()) {
+            AtomicInteger count = new AtomicInteger();
+            queued[priority.ordinal()] = count;
+            metrics.workQueueDepth(priority.name(), count::get);
+        }
+    }
+
+    public Future<?> submit(WorkPriority priority, Runnable task) {
+        PrioritizedTask prioritized = new PrioritizedTask(priority, task);
+        queued[priority.ordinal()].incrementAndGet();
+        executor.execute(prioritized);
+        return prioritized;
+    }
+
+    public int queuedCount(WorkPriority priority) {
+        return queued[priority.ordinal()].get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private class PrioritizedTask extends FutureTask<Void> implements Comparable<PrioritizedTask> {
+        private final WorkPriority priority;
+        private final long sequenceNumber = sequence.getAndIncrement();
+        private final long submittedNanos = System.nanoTime();
+
+        PrioritizedTask(WorkPriority priority, Runnable task) {
+            super(task, null);
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            queued[priority.ordinal()].decrementAndGet();
+            if (!isCancelled()) {
+                metrics.workQueueWait(priority.name(), System.nanoTime() - submittedNanos);
+            }
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // Take it out of the queue now, rather than leaving it to take up space until a worker gets to it
+            if (cancelled && executor.remove(this)) {
+                queued[priority.ordinal()].decrementAndGet();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
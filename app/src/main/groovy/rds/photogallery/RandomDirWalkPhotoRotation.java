@@ -1,58 +1,267 @@
 package rds.photogallery;
 
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Picks photos by walking down from the base dir, choosing a random entry at each level until it lands on a photo.
+ * This is the rotation that serves the first photos at startup, so it has to be quick from the very first one.
+ *
+ * It walks an in-memory tree of the directories instead of the file system. At first, the tree is filled in as the walk
+ * goes, listing each directory the first time it's visited, so the first photo costs no more listings than the depth of
+ * the tree. Meanwhile, the whole tree is scanned in the background, and once that's done, a walk never touches the
+ * disk at all. The scan is redone in the background every so often while the rotation is being used, to pick up
+ * changes. When something else is going to scan the tree soon and take over from this rotation anyway, like a ratings
+ * index left from the last run, the background scan can be left off, so the two don't compete for the disk, and the
+ * walk just keeps listing directories as it goes. Closing the rotation stops a scan that's under way. Directories
+ * with no photos in them anywhere are pruned from the tree, so a walk never dead ends.
+ *
+ * Choosing an entry at random at each level favors photos in small directories. Once the whole tree is known, it can
+ * instead choose photos uniformly, by weighting each subdirectory by how many photos are under it.
+ */
 public class RandomDirWalkPhotoRotation implements PhotoRotation {
+    private static final Logger log = LoggerFactory.getLogger(RandomDirWalkPhotoRotation.class);
     private final Path baseDir;
-    private final Random rand = new Random();
-    private final Set<Path> blackList = new HashSet<>();
+    private final boolean uniformByPhoto;
+    private final long refreshNanos;
+    private final boolean scanInBackground;
+    private final ParallelPhotoScanner scanner;
+    private final Metrics metrics;
+    private Node root;
+    // Whether root came from a full scan, and so has no directories left to list
+    private boolean complete;
+    private long scannedAt;
+    private boolean scanning;
+    private volatile boolean closed;
+
+    /**
+     * A directory in the tree, with the photos right in it and the subdirectories that have photos under them.
+     */
+    private static class Node {
+        final String relativePath;
+        final List<String> photos = new ArrayList<>();
+        final List<Node> subdirs = new ArrayList<>();
+        boolean listed;
+        // Only known in a complete tree: the number of photos anywhere under here, and running totals of the same
+        // for the subdirectories, in order, for picking one by weight
+        long photoCount;
+        long[] subdirTotals;
 
-    public RandomDirWalkPhotoRotation(Path baseDir) {
+        Node(String relativePath) {
+            this.relativePath = relativePath;
+        }
+
+        int entryCount() {
+            return photos.size() + subdirs.size();
+        }
+    }
+
+    public RandomDirWalkPhotoRotation(Path baseDir, boolean uniformByPhoto, int refreshMinutes,
+                                      boolean scanInBackground, int scanParallelism, Metrics metrics) {
         this.baseDir = baseDir;
+        this.uniformByPhoto = uniformByPhoto;
+        this.refreshNanos = TimeUnit.MINUTES.toNanos(refreshMinutes);
+        this.scanInBackground = scanInBackground;
+        this.scanner = new ParallelPhotoScanner(baseDir, scanParallelism, metrics);
+        this.metrics = metrics;
+        this.root = new Node("");
     }
 
     @Override
-    public String next() {
-        Stack<Path> history = new Stack<>();
-        try {
-            Path selectedPath = baseDir;
-            while (Files.isDirectory(selectedPath)) {
-                history.push(selectedPath);
-                List<Path> entries = Files.list(selectedPath)
-                        .filter(p -> Files.isDirectory(p) || isImage(p))
-                        .filter(p -> !App.isRewrite(p))
-                        .collect(Collectors.toList());
-                if (entries.isEmpty()) {
-                    blackList.add(selectedPath);
-                    history.pop();
-                    selectedPath = history.peek();
-                } else {
-                    do {
-                        int selection = rand.nextInt(entries.size());
-                        selectedPath = entries.get(selection);
-                    } while (blackList.contains(selectedPath));
+    public synchronized String next() {
+        refreshIfDue();
+        if (complete) {
+            return uniformByPhoto ? pickByPhoto() : pickByEntry();
+        }
+        return pickByEntry();
+    }
+
+    /**
+     * Stops the background scan, if there's one going. Whatever it found so far is thrown away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Walks down from the root, choosing among each directory's entries evenly. Any directory that turns out to have
+     * nothing in it is pruned, and the walk starts over. Each prune removes a directory for good, so this always
+     * finishes, either with a photo or with finding out there aren't any.
+     */
+    private String pickByEntry() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Node parent = null;
+        Node node = root;
+        while (true) {
+            if (!node.listed) {
+                list(node);
+            }
+            if (node.entryCount() == 0) {
+                if (parent == null) {
+                    throw new IllegalStateException("No photos found under " + baseDir);
                 }
+                parent.subdirs.remove(node);
+                parent = null;
+                node = root;
+                continue;
             }
-            return baseDir.relativize(selectedPath).toString();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to walk dirs", e);
+            int selection = random.nextInt(node.entryCount());
+            if (selection < node.photos.size()) {
+                return node.photos.get(selection);
+            }
+            parent = node;
+            node = node.subdirs.get(selection - node.photos.size());
+        }
+    }
+
+    /**
+     * Picks one of all the photos in the tree evenly, with one random number, by finding which directory at each level
+     * it falls in.
+     */
+    private String pickByPhoto() {
+        Node node = root;
+        if (node.photoCount == 0) {
+            throw new IllegalStateException("No photos found under " + baseDir);
+        }
+        long selection = ThreadLocalRandom.current().nextLong(node.photoCount);
+        while (true) {
+            if (selection < node.photos.size()) {
+                return node.photos.get((int) selection);
+            }
+            selection -= node.photos.size();
+            int index = Arrays.binarySearch(node.subdirTotals, selection + 1);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            if (index > 0) {
+                selection -= node.subdirTotals[index - 1];
+            }
+            node = node.subdirs.get(index);
         }
     }
 
     /**
-     * Tries to determine whether the give path represents a loadable image so that we skip things like text files or
-     * other things that show up in the same directory.
+     * Lists a directory into the tree. Its subdirectories are added unlisted, to be listed when a walk first gets to
+     * them.
      */
-    public boolean isImage(Path path) {
+    private void list(Node node) {
+        node.listed = true;
+        Path dir = node.relativePath.isEmpty() ? baseDir : baseDir.resolve(node.relativePath);
         try {
-            String contentType = Files.probeContentType(path);
-            return contentType != null && contentType.startsWith("image");
+            // Only one level down. Directories at that level come through visitFile.
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isDirectory()) {
+                        node.subdirs.add(new Node(relativize(file)));
+                    } else if (attributes.isRegularFile() &&
+                            ParallelPhotoScanner.isPhotoFileName(file.getFileName().toString()) &&
+                            !App.isRewrite(file)) {
+                        node.photos.add(relativize(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    log.info("Couldn't read {} while walking for photos", file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         } catch (IOException e) {
-            throw new IllegalStateException("Failed to probe file for media type", e);
+            log.info("Couldn't list {} while walking for photos", dir, e);
+        }
+    }
+
+    private String relativize(Path file) {
+        return FilenameUtils.separatorsToUnix(baseDir.relativize(file).toString());
+    }
+
+    private void refreshIfDue() {
+        if (!scanInBackground || closed || scanning) {
+            return;
+        }
+        if (scannedAt != 0 && System.nanoTime() - scannedAt < refreshNanos) {
+            return;
+        }
+        scanning = true;
+        Thread thread = new Thread(this::scan, "photo-tree-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Scans the whole tree and swaps it in for the one being walked.
+     */
+    private void scan() {
+        Node scanned = null;
+        try {
+            scanned = metrics.timeAndReturn("dir walk tree build", () -> {
+                Queue<String> found = new ConcurrentLinkedQueue<>();
+                scanner.scan((relativePath, attributes) -> found.add(relativePath), () -> closed);
+                return closed ? null : buildTree(found);
+            });
+        } catch (Exception e) {
+            log.warn("Failed to scan the photo tree under {}", baseDir, e);
+        } finally {
+            synchronized (this) {
+                if (scanned != null) {
+                    root = scanned;
+                    complete = true;
+                    log.info("Photo tree under {} has {} photos", baseDir, scanned.photoCount);
+                }
+                scannedAt = System.nanoTime();
+                scanning = false;
+            }
+        }
+    }
+
+    /**
+     * Builds a complete tree out of the relative paths of every photo. Only directories with photos under them end up
+     * in it, so there's nothing to prune.
+     */
+    private static Node buildTree(Collection<String> photoPaths) {
+        Node root = new Node("");
+        Map<String, Node> nodes = new HashMap<>();
+        nodes.put("", root);
+        for (String path : photoPaths) {
+            int slash = path.lastIndexOf('/');
+            node(nodes, slash < 0 ? "" : path.substring(0, slash)).photos.add(path);
+        }
+        count(root);
+        return root;
+    }
+
+    private static Node node(Map<String, Node> nodes, String relativePath) {
+        Node node = nodes.get(relativePath);
+        if (node == null) {
+            node = new Node(relativePath);
+            int slash = relativePath.lastIndexOf('/');
+            node(nodes, slash < 0 ? "" : relativePath.substring(0, slash)).subdirs.add(node);
+            nodes.put(relativePath, node);
+        }
+        return node;
+    }
+
+    private static long count(Node node) {
+        node.listed = true;
+        node.subdirTotals = new long[node.subdirs.size()];
+        long total = 0;
+        for (int i = 0; i < node.subdirs.size(); i++) {
+            total += count(node.subdirs.get(i));
+            node.subdirTotals[i] = total;
         }
+        node.photoCount = node.photos.size() + total;
+        return node.photoCount;
     }
 }
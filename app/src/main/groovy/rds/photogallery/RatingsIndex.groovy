@@ -0,0 +1,234 @@
+package rds.photogallery
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.sql.DataSource
+import java.nio.file.Paths
+import java.nio.file.attribute.BasicFileAttributes
+import java.sql.Connection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Predicate
+
+/**
+ * The sqlite index of every photo under the root dir, with its rating and its place in the rating cycles, that the
+ * {@link SqliteRatingsBasedPhotoRotation} draws from. It's kept from one run to the next. At startup, the photo tree is
+ * scanned, in parallel, for each file's size and modification time, compared against what's in the index, and only
+ * the differences are written: new photos, changed ones, ones whose rating changed in the photo data, and ones that are
+ * gone. Which photos have been shown in the current cycle of each rating carries over, too, along with which cycle
+ * that is.
+ *
+ * This used to be rebuilt from nothing on every start, which took minutes on a big library and started every rating's
+ * cycle over.
+ */
+class RatingsIndex {
+    private static final Logger log = LoggerFactory.getLogger(RatingsIndex.class)
+    // Rows are written in transactions of this many, so the rotation isn't locked out of the db for long
+    private static final int ROWS_PER_TRANSACTION = 5000
+    private final DataSource dataSource
+    private final ParallelPhotoScanner scanner
+    private final Metrics metrics
+
+    /**
+     * What the index knows about a photo.
+     */
+    static class Entry {
+        final long size
+        final long modified
+        final int rating
+
+        Entry(long size, long modified, int rating) {
+            this.size = size
+            this.modified = modified
+            this.rating = rating
+        }
+    }
+
+    RatingsIndex(DataSource dataSource, String rootDir, int scanParallelism, Metrics metrics) {
+        this.dataSource = dataSource
+        this.scanner = new ParallelPhotoScanner(Paths.get(rootDir), scanParallelism, metrics)
+        this.metrics = metrics
+        createTables()
+    }
+
+    /**
+     * Whether there's anything in the index yet, meaning the rotation can start drawing from it while it's updated.
+     */
+    boolean hasPhotos() {
+        withConnection { Connection conn ->
+            def statement = conn.createStatement()
+            def resultSet = statement.executeQuery('select exists(select 1 from photos)')
+            boolean result = resultSet.next() && resultSet.getBoolean(1)
+            resultSet.close()
+            statement.close()
+            result
+        }
+    }
+
+    /**
+     * Brings the index up to date with the photos on disk and their photo data. Photos the predicate turns down are
+     * left out, the same as if they weren't there.
+     */
+    void update(PhotoDataSource photoData, Predicate<PhotoData> predicate) {
+        Map<String, Entry> onDisk = metrics.timeAndReturn('ratings index scan', { scan(photoData, predicate) })
+        Map<String, Entry> indexed = metrics.timeAndReturn('ratings index read', { read() })
+        Map<String, Entry> added = [:]
+        Map<String, Entry> changed = [:]
+        List<String> removed = []
+        metrics.time('ratings index diff', {
+            onDisk.each { path, entry ->
+                def existing = indexed[path]
+                if (existing == null) {
+                    added[path] = entry
+                } else if (existing.size != entry.size || existing.modified != entry.modified ||
+                        existing.rating != entry.rating) {
+                    changed[path] = entry
+                }
+            }
+            indexed.keySet().each { path ->
+                if (!onDisk.containsKey(path)) {
+                    removed << path
+                }
+            }
+        })
+        metrics.time('ratings index apply', { apply(added, changed, removed) })
+        log.info("Ratings index has {} photos after adding {}, updating {}, and removing {}",
+                onDisk.size(), added.size(), changed.size(), removed.size())
+    }
+
+    private void createTables() {
+        withConnection { Connection conn ->
+            def statement = conn.createStatement()
+            def columns = []
+            def resultSet = statement.executeQuery('pragma table_info(photos)')
+            while (resultSet.next()) {
+                columns << resultSet.getString('name')
+            }
+            resultSet.close()
+            if (columns && !columns.contains('modified')) {
+                // Left over from when the index was rebuilt every time. There's nothing in it worth keeping.
+                statement.execute('drop table photos')
+            }
+            statement.execute('create table if not exists photos(' +
+                    'relative_path text primary key,' +
+                    'rating integer not null,' +
+                    'cycle text not null,' +
+                    'size integer not null,' +
+                    'modified integer not null,' +
+                    // Where the photo comes in the random order its rating's photos are drawn in
+                    'shuffle_key integer not null default (random())' +
+                    ')')
+            if (columns && columns.contains('modified') && !columns.contains('shuffle_key')) {
+                // Kept from before photos had a place in a random order. A column added to a table that's already
+                // there can't default to random(), so each one is given its place here, and new ones when inserted.
+                statement.execute('alter table photos add column shuffle_key integer not null default 0')
+                statement.execute('update photos set shuffle_key = random()')
+            }
+            // The cycle each rating is on, so the rotation picks up where it left off
+            statement.execute('create table if not exists rating_cycles(' +
+                    'rating integer primary key,' +
+                    'cycle text not null' +
+                    ')')
+            // Covers the rotation's lookups of a rating's photos in a cycle, in their random order, so taking the next
+            // few never has to sort them or touch the table itself
+            statement.execute('drop index if exists photos_by_rating_cycle')
+            statement.execute('create index if not exists photos_by_rating_cycle_key ' +
+                    'on photos(rating, cycle, shuffle_key, relative_path)')
+            statement.close()
+        }
+    }
+
+    private Map<String, Entry> scan(PhotoDataSource photoData, Predicate<PhotoData> predicate) {
+        Map<String, Entry> result = new ConcurrentHashMap<>()
+        scanner.scan({ String relativePath, BasicFileAttributes attributes ->
+            // Photo data sources aren't thread safe, and they add entries for photos they haven't seen before
+            PhotoData data
+            synchronized (photoData) {
+                data = photoData.getPhotoData(relativePath)
+            }
+            if (predicate.test(data)) {
+                result[relativePath] = new Entry(
+                        attributes.size(), attributes.lastModifiedTime().toMillis(), data.rating)
+            } else {
+                log.trace("Filtering out of db: " + data)
+            }
+        } as ParallelPhotoScanner.Listener)
+        result
+    }
+
+    private Map<String, Entry> read() {
+        withConnection { Connection conn ->
+            Map<String, Entry> result = [:]
+            def statement = conn.createStatement()
+            def resultSet = statement.executeQuery('select relative_path, size, modified, rating from photos')
+            while (resultSet.next()) {
+                result[resultSet.getString(1)] = new Entry(resultSet.getLong(2), resultSet.getLong(3),
+                        resultSet.getInt(4))
+            }
+            resultSet.close()
+            statement.close()
+            result
+        }
+    }
+
+    private void apply(Map<String, Entry> added, Map<String, Entry> changed, List<String> removed) {
+        withConnection { Connection conn ->
+            conn.autoCommit = false
+            // New photos haven't been shown in either cycle
+            def insertStmt = conn.prepareStatement(
+                    'insert into photos (relative_path, rating, cycle, size, modified, shuffle_key) ' +
+                            "values (?, ?, 'none yet', ?, ?, random())")
+            // A changed photo keeps its place in the cycle
+            def updateStmt = conn.prepareStatement(
+                    'update photos set rating = ?, size = ?, modified = ? where relative_path = ?')
+            def deleteStmt = conn.prepareStatement('delete from photos where relative_path = ?')
+            int pending = 0
+            def flushIfFull = {
+                if (++pending >= ROWS_PER_TRANSACTION) {
+                    insertStmt.executeBatch()
+                    updateStmt.executeBatch()
+                    deleteStmt.executeBatch()
+                    conn.commit()
+                    pending = 0
+                }
+            }
+            added.each { path, entry ->
+                insertStmt.setString(1, path)
+                insertStmt.setInt(2, entry.rating)
+                insertStmt.setLong(3, entry.size)
+                insertStmt.setLong(4, entry.modified)
+                insertStmt.addBatch()
+                flushIfFull()
+            }
+            changed.each { path, entry ->
+                updateStmt.setInt(1, entry.rating)
+                updateStmt.setLong(2, entry.size)
+                updateStmt.setLong(3, entry.modified)
+                updateStmt.setString(4, path)
+                updateStmt.addBatch()
+                flushIfFull()
+            }
+            removed.each { path ->
+                deleteStmt.setString(1, path)
+                deleteStmt.addBatch()
+                flushIfFull()
+            }
+            insertStmt.executeBatch()
+            updateStmt.executeBatch()
+            deleteStmt.executeBatch()
+            conn.commit()
+            insertStmt.close()
+            updateStmt.close()
+            deleteStmt.close()
+        }
+    }
+
+    private <T> T withConnection(Closure<T> work) {
+        def conn = dataSource.getConnection()
+        try {
+            work(conn)
+        } finally {
+            conn.close()
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package rds.photogallery;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers recently scaled photos so that showing one again at the same size doesn't mean loading it from scratch.
+ * Entries are keyed by the photo's path, the size it was scaled to, and its orientation. The cache is limited by the
+ * number of bytes held in image rasters rather than by the number of entries, since a full screen photo can easily be
+ * a hundred times the size of a small grid tile, and the heap isn't very big. The least recently used photos are evicted
+ * first.
+ *
+ * A photo's orientation is only known once it's been loaded, so the cache also remembers the orientation of each photo
+ * it holds, for as long as it holds any scaling of it. That way, a photo can be looked up by just its path and size.
+ */
+public class ScaledImageCache {
+    private final String name;
+    private final long maxBytes;
+    private final Metrics metrics;
+    // Access ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Orientation> orientations = new HashMap<>();
+    private long bytesHeld;
+
+    public ScaledImageCache(String name, long maxBytes, Metrics metrics) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        metrics.cacheSize(name, this::getBytesHeld);
+    }
+
+    /**
+     * Gets a photo scaled to the size in whatever orientation it was cached with, or null if there isn't one.
+     */
+    public synchronized BufferedImage get(String relativePath, Dimension size) {
+        Orientation orientation = orientations.get(relativePath);
+        if (orientation == null) {
+            metrics.cacheMiss(name);
+            return null;
+        }
+        return get(relativePath, size, orientation.value);
+    }
+
+    public synchronized BufferedImage get(String relativePath, Dimension size, int orientation) {
+        BufferedImage result = images.get(new Key(relativePath, size, orientation));
+        if (result == null) {
+            metrics.cacheMiss(name);
+        } else {
+            metrics.cacheHit(name);
+        }
+        return result;
+    }
+
+    /**
+     * Same as above, but without counting it as a hit or a miss. This is for checking again for a photo that was
+     * already looked up, like once its orientation is known, so one load doesn't count as two misses.
+     */
+    public synchronized BufferedImage peek(String relativePath, Dimension size, int orientation) {
+        return images.get(new Key(relativePath, size, orientation));
+    }
+
+    public synchronized void put(String relativePath, Dimension size, int orientation, BufferedImage image) {
+        long imageBytes = PhotoTools.imageBytes(image);
+        if (imageBytes > maxBytes) {
+            // It'd just push everything else out and then get evicted itself
+            return;
+        }
+        BufferedImage replaced = images.put(new Key(relativePath, size, orientation), image);
+        if (replaced != null) {
+            bytesHeld -= PhotoTools.imageBytes(replaced);
+        } else {
+            orientations.computeIfAbsent(relativePath, path -> new Orientation()).images++;
+        }
+        orientations.get(relativePath).value = orientation;
+        bytesHeld += imageBytes;
+        Iterator<Map.Entry<Key, BufferedImage>> eldest = images.entrySet().iterator();
+        while (bytesHeld > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = eldest.next();
+            bytesHeld -= PhotoTools.imageBytes(entry.getValue());
+            eldest.remove();
+            Orientation evicted = orientations.get(entry.getKey().relativePath);
+            if (--evicted.images == 0) {
+                orientations.remove(entry.getKey().relativePath);
+            }
+            metrics.cacheEviction(name);
+        }
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * The orientation of a photo, and how many scalings of it are in the cache.
+     */
+    private static class Orientation {
+        int value;
+        int images;
+    }
+
+    private static class Key {
+        final String relativePath;
+        final int width;
+        final int height;
+        final int orientation;
+
+        Key(String relativePath, Dimension size, int orientation) {
+            this.relativePath = relativePath;
+            this.width = size.width;
+            this.height = size.height;
+            this.orientation = orientation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && orientation == key.orientation &&
+                    relativePath.equals(key.relativePath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(relativePath, width, height, orientation);
+        }
+    }
+}
@@ -23,6 +23,10 @@ class Settings {
         }
     }
 
+    int asInt(Setting setting) {
+        Integer.parseInt(setting.getValue().trim())
+    }
+
     void setString(Setting setting, String value) {
         setting.value = value
     }
@@ -35,7 +39,46 @@ class Settings {
         GRAPHITE_HOST('192.168.1.105'),
         PHOTO_ROOT_DIR(''),
         EXCLUDED_PATHS(''),
-        TAG_FILTER('')
+        TAG_FILTER(''),
+        // How many photos to keep loaded and scaled ahead of time for each panel
+        PREFETCH_DEPTH('2'),
+        // Upper limit on the memory held by prefetched photos across all panels
+        PREFETCH_MEMORY_MEGABYTES('128'),
+        // Upper limit on the memory held by recently scaled photos, kept so they can be reshown without loading them
+        SCALED_IMAGE_CACHE_MEGABYTES('192'),
+        // Where to keep scaled copies of photos on local disk, and how much space they can take up
+        DERIVATIVE_CACHE_DIR('derivative-cache'),
+        DERIVATIVE_CACHE_MEGABYTES('4096'),
+        // Rotate and scale photos in a single pass instead of rotating and then resizing with Scalr
+        FUSED_TRANSFORM('true'),
+        // Show a quickly scaled photo right away, then swap in the high quality one when it's ready
+        PROGRESSIVE_RESIZE('true'),
+        // How long a panel's size has to hold still before it gets a photo reloaded for the new size
+        RESIZE_QUIET_MILLIS('400'),
+        // Upper limit on the memory held by the frames of all the animations playing at once
+        GIF_MEMORY_MEGABYTES('256'),
+        // When every panel is changed at once, how long to hold loaded photos back so they can all be shown together
+        BATCH_REVEAL_DEADLINE_MILLIS('1500'),
+        // How many photos each panel remembers for stepping back and forth, and how much memory they can hold on to
+        HISTORY_LENGTH('20'),
+        HISTORY_MEMORY_MEGABYTES('128'),
+        // Adjust resize quality, prefetching, and how often photos change to keep deliveries near a target time
+        ADAPTIVE_PACING('false'),
+        ADAPTIVE_TARGET_DELIVERY_MILLIS('1000'),
+        // How many photos per panel adaptive pacing can prefetch when there's time to spare
+        ADAPTIVE_MAX_PREFETCH_DEPTH('4'),
+        // The sqlite index of photos and their ratings, kept from one run to the next
+        RATINGS_DB_FILE('photos.sqlite'),
+        // How many directories to list at once when scanning for photos. It's mostly waiting on the disk or network.
+        SCAN_PARALLELISM('16'),
+        // Until the ratings index is ready, photos are picked by a random walk of the photo tree. By default, it picks
+        // evenly among the entries in each directory it walks through, but it can pick evenly among all photos instead.
+        DIR_WALK_UNIFORM_BY_PHOTO('false'),
+        // How often the random walk's copy of the photo tree is rescanned while it's in use
+        DIR_WALK_REFRESH_MINUTES('30'),
+        // Where the ratings rotation keeps track of which photos it's shown: 'memory' loads everything from the ratings
+        // db and saves back to it in the background, and 'sqlite' queries and updates the db for every photo
+        ROTATION_ENGINE('memory')
 
         String value
 
@@ -3,115 +3,270 @@ package rds.photogallery
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import javax.sql.DataSource
 import java.sql.Connection
+import java.sql.PreparedStatement
+import java.util.concurrent.Callable
 
 /**
- * A {@link PhotoRotation} that selects photos based on ratings using the sqlite ratings db. The database must be fully
- * populated before using this class. The ratings frequency is hardcoded here. It should be made configurable in some
- * way.
+ * A {@link PhotoRotation} that selects photos based on ratings using the sqlite ratings db. The database must have been
+ * set up by {@link RatingsIndex} before using this class, though it doesn't have to be up to date. The ratings
+ * frequency is hardcoded here. It should be made configurable in some way.
+ *
+ * It holds one connection open for as long as it's in use, with its statements prepared once, and keeps its own count
+ * of how many photos of each rating are in each cycle. Every photo has a random shuffle key, and each draw starts at a
+ * random key and takes the next few photos of the rating in shuffle key order, wrapping around past the last one, so
+ * it's a walk along the (rating, cycle, shuffle key) index that doesn't depend on how many photos there are. The keys
+ * are never dealt again, so a cycle turning over doesn't have to write to every photo of the rating. It's not quite an
+ * even shuffle, since a photo right after a long run of ones already shown is more likely to be landed on, but every
+ * photo still comes up once a cycle, and the runs change as photos are shown. The photos not yet shown in the current
+ * cycle can be in more than one cycle value, like the last cycle and 'none yet', so each value is walked on its own,
+ * and the counts say how many to take from each. The counts also tell it when a cycle is used up without asking the
+ * db, and the stats it logs don't cost a query.
+ *
+ * Each draw, or batch of draws, is one transaction. What it changes about the cycles is only kept in memory once that's
+ * committed, so a failed draw can't leave it out of step with the db.
  */
 class SqliteRatingsBasedPhotoRotation implements PhotoRotation {
 
     private static final Logger log = LoggerFactory.getLogger(SqliteRatingsBasedPhotoRotation.class)
     public static final String CYCLE_EXHAUSTED = 'Cycle Exhausted'
+    // How many shares of the draws each rating gets
+    public static final Map<Integer, Integer> FREQUENCY_CHART =
+            [(-999): 16, (0): 1, (1): 2, (2): 4, (3): 8, (4): 16, (5): 32]
 
     final Map<Integer, Integer> frequencies = [:]
     final List<Integer> flatFreqList
     final int totalFrequencies
     final def rand = new Random()
     final Map<Integer, String> currentCycleByRating
+    private final Metrics metrics
+    private final Connection conn
+    private final PreparedStatement findFromStmt
+    private final PreparedStatement findBeforeStmt
+    private final PreparedStatement updateCycleStmt
+    private final PreparedStatement saveCycleStmt
+    // Photos per cycle, per rating
+    private final Map<Integer, Map<String, Integer>> cycleCounts = [:]
 
-    SqliteRatingsBasedPhotoRotation() {
-        def frequencyChart = [(-999): 16, (0): 1, (1): 2, (2): 4, (3): 8, (4): 16, (5): 32]
-        def conn = App.instance.sqliteDataSource.getConnection()
+    SqliteRatingsBasedPhotoRotation(DataSource dataSource, Metrics metrics) {
+        this.metrics = metrics
+        conn = dataSource.getConnection()
+        findFromStmt = conn.prepareStatement('select relative_path from photos ' +
+                'where rating = ? and cycle = ? and shuffle_key >= ? order by shuffle_key limit ?')
+        findBeforeStmt = conn.prepareStatement('select relative_path from photos ' +
+                'where rating = ? and cycle = ? and shuffle_key < ? order by shuffle_key limit ?')
+        updateCycleStmt = conn.prepareStatement('update photos set cycle = ? where relative_path = ?')
+        saveCycleStmt = conn.prepareStatement('insert or replace into rating_cycles (rating, cycle) values (?, ?)')
+        countCycles()
+        cycleCounts.keySet().each { rating ->
+            frequencies.put(rating, FREQUENCY_CHART[rating])
+        }
+        // Pick up each rating's cycle where the last run left it
+        Map<Integer, String> savedCycles = [:]
         def statement = conn.createStatement()
-        def resultSet = statement.executeQuery('select distinct(rating) from photos')
+        def resultSet = statement.executeQuery('select rating, cycle from rating_cycles')
         while (resultSet.next()) {
-            int rating = resultSet.getInt(1)
-            frequencies.put(rating, frequencyChart[rating])
+            savedCycles.put(resultSet.getInt(1), resultSet.getString(2))
         }
         resultSet.close()
         statement.close()
-        conn.close()
 
         flatFreqList = frequencies.collectMany { Collections.nCopies(it.value, it.key) }
         totalFrequencies = flatFreqList.size()
-        currentCycleByRating = frequencies.collectEntries { [it.key, 'A'] }
+        currentCycleByRating = frequencies.collectEntries { [it.key, savedCycles.getOrDefault(it.key, 'A')] }
     }
 
     @Override
     String next() {
-        App.metrics().timeAndReturn('find random in sqlite', this::doNext)
+        metrics.timeAndReturn('find random in sqlite', { doNext(1).first() } as Callable<String>)
+    }
+
+    @Override
+    List<String> next(int count) {
+        metrics.timeAndReturn('find random batch in sqlite', { doNext(count) } as Callable<List<String>>)
     }
 
-    String doNext() {
-        int rating = flatFreqList[rand.nextInt(totalFrequencies)]
-        def cycleName = currentCycleByRating[rating]
-        def conn = App.instance.sqliteDataSource.getConnection()
+    /**
+     * Gets a batch of photos with one query and one batched update per rating and cycle drawn from. No photo is in a
+     * batch twice. If a rating's cycle turns over partway through a batch, the photos the batch already has from it are
+     * counted as shown in the new cycle, since that's when they're really being shown. A rating that runs out of photos
+     * the batch doesn't already have gives its share to the others, and only if they all run out is the batch padded
+     * with CYCLE_EXHAUSTED.
+     */
+    synchronized List<String> doNext(int count) {
+        List<String> result = []
+        Set<Integer> usedUp = [] as Set
+        // Cycles that turn over in this batch, which are only set for real once it's committed
+        Map<Integer, String> newCycles = [:]
+        boolean recounted = false
         if (log.isInfoEnabled()) {
-            dumpDbStats(conn)
+            logStats()
         }
-        String result = findOneByRating(conn, rating, cycleName)
-        if (result == CYCLE_EXHAUSTED) {
-            // Either we've cycled all photos in this rating, or there are zero photos with this rating.
-            def nextCycle = cycleName == 'A' ? 'B' : 'A'
-            log.info("Setting cycle for rating $rating to $nextCycle")
-            currentCycleByRating[rating] = nextCycle
-            result = findOneByRating(conn, rating, nextCycle)
+        conn.autoCommit = false
+        try {
+            while (result.size() < count && usedUp.size() < frequencies.size()) {
+                def choices = usedUp ? flatFreqList.findAll { !(it in usedUp) } : flatFreqList
+                // Draw all the ratings up front, so each one is only queried once no matter how many it's asked for
+                Map<Integer, Integer> wantedByRating = [:].withDefault { 0 }
+                (count - result.size()).times { wantedByRating[choices[rand.nextInt(choices.size())]]++ }
+                wantedByRating.each { rating, wanted ->
+                    def cycleName = newCycles[rating] ?: currentCycleByRating[rating]
+                    def found = findSomeByRating(rating, cycleName, wanted)
+                    if (found.size() < wanted && !recounted) {
+                        // The counts may be off, like if the index was updated while this was running, so they're
+                        // taken again before giving up on the cycle. That's once per cycle at most, when it's really
+                        // used up.
+                        recounted = true
+                        countCycles()
+                        found += findSomeByRating(rating, cycleName, wanted - found.size())
+                    }
+                    if (found.size() < wanted) {
+                        def nextCycle = cycleName == 'A' ? 'B' : 'A'
+                        newCycles[rating] = nextCycle
+                        saveCycle(rating, nextCycle)
+                        found.each { markShown(rating, cycleName, nextCycle, it) }
+                        if (found) {
+                            updateCycleStmt.executeBatch()
+                        }
+                        found += findSomeByRating(rating, nextCycle, wanted - found.size())
+                    }
+                    if (found.size() < wanted) {
+                        usedUp << rating
+                    }
+                    result.addAll(found)
+                }
+            }
+            if (result.size() < count) {
+                log.warn("Came up ${count - result.size()} short of $count photos, even with new cycles. Are there " +
+                        'that many?')
+                result += Collections.nCopies(count - result.size(), CYCLE_EXHAUSTED)
+            }
+            conn.commit()
+        } catch (Exception e) {
+            // None of it happened, as far as the db is concerned, so the counts have to be taken again
+            conn.rollback()
+            countCycles()
+            throw e
+        } finally {
+            conn.autoCommit = true
         }
-        if (result == CYCLE_EXHAUSTED) {
-            log.warn('Just refreshed a cycle, but still got CYCLE_EXHAUSTED. Is there an empty photo cycle here?')
+        newCycles.each { rating, cycleName ->
+            log.info("Setting cycle for rating $rating to $cycleName")
+            currentCycleByRating[rating] = cycleName
         }
-        conn.close()
+        // Otherwise, photos of the same rating would all land next to each other
+        Collections.shuffle(result, rand)
         result
     }
 
-    void dumpDbStats(Connection conn) {
-        Map<Integer, Integer> pastPhotos = new LinkedHashMap<>().withDefault {0}
-        Map<Integer, Integer> comingPhotos = new LinkedHashMap<>().withDefault {0}
-        def statement = conn.createStatement()
-        def resultSet = statement.executeQuery(
-                'select rating, cycle, count(*) from photos group by rating, cycle order by rating')
-        while (resultSet.next()) {
-            Integer rating = resultSet.getInt(1)
-            String cycle = resultSet.getString(2)
-            Integer count = resultSet.getInt(3)
-            Map<Integer, Integer> toUpdate
+    /**
+     * The counts can't know about a rating changed in the db, so they're taken again.
+     */
+    @Override
+    synchronized void ratingChanged(String relativePath, int newRating) {
+        countCycles()
+    }
+
+    @Override
+    synchronized void close() {
+        [findFromStmt, findBeforeStmt, updateCycleStmt, saveCycleStmt]*.close()
+        conn.close()
+    }
+
+    void logStats() {
+        def descriptions = currentCycleByRating.keySet().sort().collect { rating ->
             def currentCycle = currentCycleByRating[rating]
-            if (cycle == currentCycle) {
-                toUpdate = pastPhotos
-            } else {
-                toUpdate = comingPhotos
+            "$rating($currentCycle): ${remaining(rating, currentCycle)}->${cycleCounts[rating]?.get(currentCycle) ?: 0}"
+        }
+        log.info("Rating cycles: $descriptions")
+    }
+
+    void saveCycle(int rating, String cycleName) {
+        saveCycleStmt.setInt(1, rating)
+        saveCycleStmt.setString(2, cycleName)
+        saveCycleStmt.execute()
+    }
+
+    static void saveCycle(Connection conn, int rating, String cycleName) {
+        def saveCycleStmt = conn.prepareStatement('insert or replace into rating_cycles (rating, cycle) values (?, ?)')
+        saveCycleStmt.setInt(1, rating)
+        saveCycleStmt.setString(2, cycleName)
+        saveCycleStmt.execute()
+        saveCycleStmt.close()
+    }
+
+    /**
+     * Gets up to limit photos of the rating that haven't been shown in the cycle, and marks them shown. They're taken
+     * from a random place in each other cycle value's shuffle order, with how many from each picked at random, weighted
+     * by how many photos are in each, so it's as if they were all in one shuffled pile.
+     */
+    List<String> findSomeByRating(int rating, String cycleName, int limit) {
+        Map<String, Integer> left = (cycleCounts[rating] ?: [:]).findAll { it.key != cycleName && it.value > 0 }
+        int remaining = (int) (left.values().sum() ?: 0)
+        Map<String, Integer> wantedByCycle = [:].withDefault { 0 }
+        Math.min(limit, remaining).times {
+            int pick = rand.nextInt(remaining)
+            def entry = left.find { pick -= it.value; pick < 0 }
+            entry.value--
+            remaining--
+            wantedByCycle[entry.key]++
+        }
+        List<String> result = []
+        wantedByCycle.each { fromCycle, wanted ->
+            // Shuffle keys are sqlite random() values, which cover the whole range of a long
+            long start = rand.nextLong()
+            List<String> found = findInOrder(findFromStmt, rating, fromCycle, start, wanted)
+            if (found.size() < wanted) {
+                found += findInOrder(findBeforeStmt, rating, fromCycle, start, wanted - found.size())
             }
-            toUpdate.put(rating, count)
+            // Marked once the query's done with, since it's reading the rows being changed
+            found.each { markShown(rating, fromCycle, cycleName, it) }
+            result.addAll(found)
+        }
+        if (result) {
+            updateCycleStmt.executeBatch()
+        }
+        result
+    }
+
+    private static List<String> findInOrder(PreparedStatement statement, int rating, String cycleName, long start,
+                                            int limit) {
+        statement.setInt(1, rating)
+        statement.setString(2, cycleName)
+        statement.setLong(3, start)
+        statement.setInt(4, limit)
+        def resultSet = statement.executeQuery()
+        List<String> found = []
+        while (resultSet.next()) {
+            found << resultSet.getString(1)
         }
         resultSet.close()
-        statement.close()
-        def allKeys = (pastPhotos.keySet() + comingPhotos.keySet()).unique().sort()
-        def descriptions = allKeys.collect {"$it(${currentCycleByRating[it]}): ${comingPhotos[it]}->${pastPhotos[it]}" }
-        log.info("Rating cycles: $descriptions")
+        found
+    }
+
+    private void markShown(int rating, String fromCycle, String toCycle, String path) {
+        updateCycleStmt.setString(1, toCycle)
+        updateCycleStmt.setString(2, path)
+        updateCycleStmt.addBatch()
+        def counts = cycleCounts[rating]
+        counts[fromCycle] = Math.max(0, (counts[fromCycle] ?: 0) - 1)
+        counts[toCycle] = (counts[toCycle] ?: 0) + 1
+    }
+
+    private int remaining(int rating, String cycleName) {
+        def counts = cycleCounts[rating]
+        counts ? (int) counts.values().sum() - (counts[cycleName] ?: 0) : 0
     }
 
-    static String findOneByRating(Connection conn, int rating, String cycleName) {
-        def findPhotoSql = 'select relative_path from photos where rating = ? and cycle != ? order by random() limit 1'
-        def findPhotoStmt = conn.prepareStatement(findPhotoSql)
-        findPhotoStmt.setInt(1, rating)
-        findPhotoStmt.setString(2, cycleName)
-        def resultSet = findPhotoStmt.executeQuery()
-        final String result
-        if (resultSet.next()) {
-            result = resultSet.getString('relative_path')
-            def updateCycleSql = 'update photos set cycle = ? where relative_path = ?'
-            def updateCycleStmt = conn.prepareStatement(updateCycleSql)
-            updateCycleStmt.setString(1, cycleName)
-            updateCycleStmt.setString(2, result)
-            updateCycleStmt.execute()
-            updateCycleStmt.close()
-        } else {
-            result = CYCLE_EXHAUSTED
+    private void countCycles() {
+        cycleCounts.clear()
+        def statement = conn.createStatement()
+        def resultSet = statement.executeQuery('select rating, cycle, count(*) from photos group by rating, cycle')
+        while (resultSet.next()) {
+            cycleCounts.computeIfAbsent(resultSet.getInt(1), { [:] }).put(resultSet.getString(2), resultSet.getInt(3))
         }
         resultSet.close()
-        findPhotoStmt.close()
-        result
+        statement.close()
     }
 }
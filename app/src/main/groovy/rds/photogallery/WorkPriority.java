@@ -0,0 +1,18 @@
+package rds.photogallery;
+
+/**
+ * How urgently a piece of work is needed, most urgent first. Work is always started in this order, so something the
+ * user is looking at never waits behind something they might look at later.
+ */
+public enum WorkPriority {
+    // The user asked for a change and is watching for it
+    USER_CHANGE,
+    // A panel with nothing in it, either because it's new or because its photo failed to load
+    EMPTY_PANEL,
+    // A panel showing a photo of the wrong size, usually after a resize
+    REFRESH,
+    // A change nobody asked for, which can stand to be a little late
+    AUTO_CHANGE,
+    // Anything nobody is waiting on, like prefetching and writing to caches
+    SPECULATIVE
+}
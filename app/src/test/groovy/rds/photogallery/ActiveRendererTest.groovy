@@ -0,0 +1,90 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.Graphics
+import java.awt.GraphicsConfiguration
+import java.awt.Rectangle
+import java.awt.image.BufferedImage
+
+class ActiveRendererTest extends Specification {
+    def setup() {
+        def metrics = new Metrics(new SimpleMeterRegistry())
+        App.instance.metrics = metrics
+        App.instance.animationClock = new AnimationClock(1024 * 1024, metrics)
+    }
+
+    static PhotoPanel panelShowing(Color color, int width, int height) {
+        def image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        def graphics = image.createGraphics()
+        graphics.color = color
+        graphics.fillRect(0, 0, width, height)
+        graphics.dispose()
+        def panel = new PhotoPanel(color.toString())
+        panel.setPhoto(new CompletePhoto("${color}.jpg".toString(), image))
+        panel
+    }
+
+    static BufferedImage compose(int width, int height, List<ActiveRenderer.Region> regions) {
+        def frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        def graphics = frame.createGraphics()
+        ActiveRenderer.compose(graphics, new ActiveRenderer.Layout(new Dimension(width, height), null, regions))
+        graphics.dispose()
+        frame
+    }
+
+    def 'draws each panel into its own region of the frame'() {
+        setup:
+        def red = panelShowing(Color.RED, 40, 30)
+        def blue = panelShowing(Color.BLUE, 40, 30)
+
+        when:
+        def frame = compose(100, 30, [
+                new ActiveRenderer.Region(red, new Rectangle(0, 0, 40, 30)),
+                new ActiveRenderer.Region(blue, new Rectangle(50, 0, 40, 30))])
+
+        then:
+        new Color(frame.getRGB(20, 15)) == Color.RED
+        new Color(frame.getRGB(70, 15)) == Color.BLUE
+        // The gaps between and around panels are black
+        new Color(frame.getRGB(45, 15)) == Color.BLACK
+        new Color(frame.getRGB(95, 15)) == Color.BLACK
+    }
+
+    def 'draws panels at the size in the layout, not their own'() {
+        setup:
+        // The panel itself was never laid out, so it thinks it's 0x0
+        def red = panelShowing(Color.RED, 40, 30)
+
+        when:
+        def frame = compose(40, 30, [new ActiveRenderer.Region(red, new Rectangle(0, 0, 40, 30))])
+
+        then:
+        red.size == new Dimension()
+        new Color(frame.getRGB(0, 0)) == Color.RED
+        new Color(frame.getRGB(39, 29)) == Color.RED
+    }
+
+    def 'a panel that fails to draw does not stop the rest'() {
+        setup:
+        def broken = new PhotoPanel('broken') {
+            @Override
+            void render(Graphics g, Dimension size, GraphicsConfiguration configuration) {
+                throw new IllegalStateException('broken')
+            }
+        }
+        def blue = panelShowing(Color.BLUE, 40, 30)
+
+        when:
+        def frame = compose(90, 30, [
+                new ActiveRenderer.Region(broken, new Rectangle(0, 0, 40, 30)),
+                new ActiveRenderer.Region(blue, new Rectangle(50, 0, 40, 30))])
+
+        then:
+        new Color(frame.getRGB(20, 15)) == Color.BLACK
+        new Color(frame.getRGB(70, 15)) == Color.BLUE
+    }
+}
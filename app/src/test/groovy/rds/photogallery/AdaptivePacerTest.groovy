@@ -0,0 +1,123 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.imgscalr.Scalr
+import spock.lang.Specification
+
+class AdaptivePacerTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def metrics = new Metrics(registry)
+
+    AdaptivePacer pacer(boolean enabled = true, boolean fusedTransform = false) {
+        new AdaptivePacer(enabled, 1000, 7500, 2, 4, fusedTransform, metrics)
+    }
+
+    /**
+     * Enough deliveries for exactly one decision
+     */
+    static void deliveries(AdaptivePacer pacer, long millis, long resizeMillis) {
+        8.times {
+            pacer.resizeTook(resizeMillis)
+            pacer.deliveryTook(millis)
+        }
+    }
+
+    def 'slow deliveries cost resize quality first when resizing is a big part of them'() {
+        setup:
+        def pacer = pacer()
+
+        when:
+        deliveries(pacer, 3000, 1500)
+
+        then:
+        pacer.resizeMethod() == Scalr.Method.QUALITY
+        pacer.prefetchDepth() == 2
+        pacer.changeDelayMillis() == 7500
+        registry.get('adaptive_pacer.resize_quality').gauge().value() == 1
+    }
+
+    def 'slow deliveries cut prefetching and then slow changes when resizing is not the problem'() {
+        setup:
+        def pacer = pacer()
+
+        when:
+        deliveries(pacer, 3000, 100)
+
+        then:
+        pacer.resizeMethod() == Scalr.Method.ULTRA_QUALITY
+        pacer.prefetchDepth() == 1
+
+        when:
+        deliveries(pacer, 3000, 100)
+
+        then:
+        pacer.changeDelayMillis() == 11250
+        pacer.settleMillis() == 3750
+        registry.get('adaptive_pacer.change_delay_millis').gauge().value() == 11250
+    }
+
+    def 'fast deliveries undo slowing down before prefetching more'() {
+        setup:
+        def pacer = pacer()
+        3.times { deliveries(pacer, 3000, 2000) }
+
+        expect:
+        pacer.resizeMethod() == Scalr.Method.SPEED
+        pacer.fastTransform()
+
+        when:
+        // It takes one round to drag the average under the target, then each round after is a step back up
+        4.times { deliveries(pacer, 100, 50) }
+
+        then:
+        pacer.resizeMethod() == Scalr.Method.ULTRA_QUALITY
+        pacer.prefetchDepth() == 2
+
+        when:
+        deliveries(pacer, 100, 50)
+
+        then:
+        pacer.prefetchDepth() == 3
+    }
+
+    def 'with a fused transform, giving up quality goes straight to the fast pass and back'() {
+        setup:
+        def pacer = pacer(true, true)
+
+        when:
+        deliveries(pacer, 3000, 1500)
+
+        then:
+        pacer.fastTransform()
+        pacer.resizeMethod() == Scalr.Method.BALANCED
+
+        when: 'still slow, with nothing more to give up in quality'
+        deliveries(pacer, 3000, 1500)
+
+        then:
+        pacer.resizeMethod() == Scalr.Method.BALANCED
+        pacer.prefetchDepth() == 1
+
+        when:
+        3.times { deliveries(pacer, 100, 50) }
+
+        then:
+        !pacer.fastTransform()
+        pacer.resizeMethod() == Scalr.Method.ULTRA_QUALITY
+    }
+
+    def 'never adjusts anything when turned off'() {
+        setup:
+        def pacer = pacer(false)
+
+        when:
+        5.times { deliveries(pacer, 5000, 4000) }
+
+        then:
+        pacer.resizeMethod() == Scalr.Method.ULTRA_QUALITY
+        !pacer.fastTransform()
+        pacer.prefetchDepth() == 2
+        pacer.changeDelayMillis() == 7500
+        pacer.deliveryMillis > 4000
+    }
+}
@@ -0,0 +1,52 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.image.BufferedImage
+
+class AnimationClockTest extends Specification {
+    def clock = new AnimationClock(10_000, new Metrics(new SimpleMeterRegistry()))
+
+    static AnimatedImage animation(int frames) {
+        // 10x10 int frames are 400 bytes each
+        new AnimatedImage((1..frames).collect { new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB) },
+                [100] * frames as int[])
+    }
+
+    def 'counts every loaded animation against the budget, playing or not'() {
+        setup:
+        def panel = new PhotoPanel('test')
+        def prefetched = animation(5)
+        def playing = animation(10)
+        clock.track(prefetched)
+        clock.track(playing)
+        clock.play(panel, playing)
+
+        expect:
+        clock.bytesHeld == 6000
+        // The panel's own animation is about to be replaced, so only the prefetched one counts against it
+        clock.allowanceFor(panel) == 8000
+        clock.allowanceFor(new PhotoPanel('other')) == 4000
+
+        cleanup:
+        clock.stop(panel)
+    }
+
+    def 'stops counting animations nobody holds on to anymore'() {
+        setup:
+        clock.track(animation(5))
+        def kept = animation(2)
+        clock.track(kept)
+
+        when:
+        for (int i = 0; i < 20 && clock.bytesHeld > 800; i++) {
+            System.gc()
+            Thread.sleep(10)
+        }
+
+        then:
+        clock.bytesHeld == 800
+        kept.frameCount == 2
+    }
+}
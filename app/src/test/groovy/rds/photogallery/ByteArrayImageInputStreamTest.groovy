@@ -0,0 +1,45 @@
+package rds.photogallery
+
+import spock.lang.Specification
+
+import javax.imageio.ImageIO
+import java.awt.image.BufferedImage
+
+class ByteArrayImageInputStreamTest extends Specification {
+    def 'reads, seeks, and reads bits like any other stream'() {
+        setup:
+        def stream = new ByteArrayImageInputStream([1, 2, 3, 0xff] as byte[])
+        def buffer = new byte[8]
+
+        expect:
+        stream.length() == 4
+        stream.read() == 1
+        stream.read(buffer, 0, 8) == 3
+        buffer[0..2] == [2, 3, -1] as byte[]
+        stream.read() == -1
+        stream.read(buffer, 0, 8) == -1
+
+        when:
+        stream.seek(3)
+
+        then:
+        stream.readBits(4) == 0xf
+        stream.streamPosition == 3
+    }
+
+    def 'decodes an image from the bytes it wraps'() {
+        setup:
+        def image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB)
+        image.setRGB(5, 5, 0x123456)
+        def bytes = new ByteArrayOutputStream()
+        ImageIO.write(image, 'png', bytes)
+
+        when:
+        def read = ImageIO.read(new ByteArrayImageInputStream(bytes.toByteArray()))
+
+        then:
+        read.width == 20
+        read.height == 10
+        (read.getRGB(5, 5) & 0xffffff) == 0x123456
+    }
+}
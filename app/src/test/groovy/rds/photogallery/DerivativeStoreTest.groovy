@@ -0,0 +1,152 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import java.util.concurrent.CancellationException
+
+class DerivativeStoreTest extends Specification {
+    def metrics = new Metrics(new SimpleMeterRegistry())
+    def storeDir = File.createTempDir().toPath()
+    def photoDir = File.createTempDir()
+
+    File original(String name) {
+        def file = new File(photoDir, name)
+        file.text = name
+        file
+    }
+
+    static BufferedImage image(int width, int height, int rgb) {
+        def image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, rgb)
+            }
+        }
+        image
+    }
+
+    def 'stored copies can be read back, even by a new store'() {
+        setup:
+        def photo = original('foo.jpg')
+        def size = new Dimension(40, 30)
+        new DerivativeStore(storeDir, 1024 * 1024, metrics).put(photo, size, 6, image(40, 20, 0x123456))
+
+        when:
+        def derivative = new DerivativeStore(storeDir, 1024 * 1024, metrics).get(photo, size)
+
+        then:
+        derivative.orientation == 6
+        derivative.image.width == 40
+        derivative.image.height == 20
+        (derivative.image.getRGB(39, 19) & 0xffffff) == 0x123456
+    }
+
+    def 'copies are only found for the same size and unchanged originals'() {
+        setup:
+        def photo = original('foo.jpg')
+        def store = new DerivativeStore(storeDir, 1024 * 1024, metrics)
+        store.put(photo, new Dimension(40, 30), 1, image(40, 30, 0))
+
+        expect:
+        store.get(photo, new Dimension(40, 31)) == null
+
+        when:
+        photo.text = 'a changed photo'
+
+        then:
+        store.get(photo, new Dimension(40, 30)) == null
+    }
+
+    def 'damaged copies are deleted'() {
+        setup:
+        def photo = original('foo.jpg')
+        def size = new Dimension(10, 10)
+        def store = new DerivativeStore(storeDir, 1024 * 1024, metrics)
+        store.put(photo, size, 1, image(10, 10, 0))
+        storeDir.toFile().listFiles()[0].bytes = [1, 2, 3, 4] as byte[]
+
+        expect:
+        store.get(photo, size) == null
+        storeDir.toFile().list().length == 0
+        store.bytesHeld == 0
+    }
+
+    def 'an interrupted read leaves the copy in place'() {
+        setup:
+        def photo = original('foo.jpg')
+        def size = new Dimension(10, 10)
+        def store = new DerivativeStore(storeDir, 1024 * 1024, metrics)
+        store.put(photo, size, 1, image(10, 10, 0))
+
+        when:
+        Thread.currentThread().interrupt()
+        store.get(photo, size)
+
+        then:
+        thrown(CancellationException)
+        Thread.interrupted()
+        store.get(photo, size) != null
+        storeDir.toFile().list().length == 1
+    }
+
+    def 'images with transparency are not stored'() {
+        setup:
+        def photo = original('foo.gif')
+        def size = new Dimension(10, 10)
+        def store = new DerivativeStore(storeDir, 1024 * 1024, metrics)
+
+        when:
+        store.put(photo, size, 1, new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB))
+
+        then:
+        store.get(photo, size) == null
+        store.bytesHeld == 0
+    }
+
+    def 'copies of the same photo stored at once do not mix'() {
+        setup:
+        def photo = original('foo.jpg')
+        def size = new Dimension(200, 150)
+        def store = new DerivativeStore(storeDir, 64 * 1024 * 1024, metrics)
+        def colors = (1..8).collect { it * 0x101010 }
+
+        when:
+        def threads = colors.collect { rgb ->
+            Thread.start { 20.times { store.put(photo, size, 1, image(200, 150, rgb)) } }
+        }
+        threads*.join()
+        def derivative = store.get(photo, size)
+        def pixels = derivative.image.getRGB(0, 0, 200, 150, null, 0, 200).collect { it & 0xffffff } as Set
+
+        then:
+        pixels.size() == 1
+        pixels.first() in colors
+        storeDir.toFile().list().length == 1
+    }
+
+    def 'least recently used copies are evicted to stay under the quota'() {
+        setup:
+        // Each copy is 16 header bytes plus 400 pixel bytes, so this holds two of them
+        def store = new DerivativeStore(storeDir, 1000, metrics)
+        def size = new Dimension(10, 10)
+        def a = original('a.jpg')
+        def b = original('b.jpg')
+        def c = original('c.jpg')
+        store.put(a, size, 1, image(10, 10, 0))
+        store.put(b, size, 1, image(10, 10, 0))
+        store.get(a, size)
+
+        when:
+        store.put(c, size, 1, image(10, 10, 0))
+
+        then:
+        store.get(a, size) != null
+        store.get(b, size) == null
+        store.get(c, size) != null
+        store.bytesHeld == 832
+        storeDir.toFile().list().length == 2
+    }
+}
@@ -0,0 +1,133 @@
+package rds.photogallery
+
+import spock.lang.Specification
+
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageTypeSpecifier
+import javax.imageio.metadata.IIOMetadataNode
+import javax.imageio.stream.MemoryCacheImageInputStream
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+
+class GifDecoderTest extends Specification {
+
+    /**
+     * Writes an animated GIF where each frame is a solid color filling only the given part of the canvas.
+     */
+    static byte[] gif(int width, int height, List<Map> frames) {
+        def out = new ByteArrayOutputStream()
+        def writer = ImageIO.getImageWritersByFormatName('gif').next()
+        def stream = ImageIO.createImageOutputStream(out)
+        writer.output = stream
+        writer.prepareWriteSequence(null)
+        frames.each { frame ->
+            def image = new BufferedImage(frame.width as int, frame.height as int, BufferedImage.TYPE_INT_RGB)
+            def graphics = image.createGraphics()
+            graphics.color = frame.color as Color
+            graphics.fillRect(0, 0, image.width, image.height)
+            graphics.dispose()
+            def type = ImageTypeSpecifier.createFromRenderedImage(image)
+            def metadata = writer.getDefaultImageMetadata(type, null)
+            def format = metadata.nativeMetadataFormatName
+            def root = metadata.getAsTree(format) as IIOMetadataNode
+            def control = root.getElementsByTagName('GraphicControlExtension').item(0) as IIOMetadataNode
+            control.setAttribute('delayTime', String.valueOf(frame.delay))
+            control.setAttribute('disposalMethod', frame.disposal as String)
+            def descriptor = root.getElementsByTagName('ImageDescriptor').item(0) as IIOMetadataNode
+            descriptor.setAttribute('imageLeftPosition', String.valueOf(frame.x))
+            descriptor.setAttribute('imageTopPosition', String.valueOf(frame.y))
+            metadata.setFromTree(format, root)
+            writer.writeToSequence(new IIOImage(image, null, metadata), null)
+        }
+        writer.endWriteSequence()
+        stream.close()
+        // The writer makes the logical screen as big as the first frame, so patch in the real size
+        def bytes = out.toByteArray()
+        bytes[6] = (byte) (width & 0xff)
+        bytes[7] = (byte) (width >> 8)
+        bytes[8] = (byte) (height & 0xff)
+        bytes[9] = (byte) (height >> 8)
+        bytes
+    }
+
+    static AnimatedImage decode(byte[] bytes, Dimension size, long allowance) {
+        def input = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))
+        def reader = ImageIO.getImageReaders(input).next()
+        reader.setInput(input, false, false)
+        try {
+            GifDecoder.decode(reader, size, allowance)
+        } finally {
+            reader.dispose()
+        }
+    }
+
+    static Map frame(Map overrides) {
+        [width: 20, height: 20, x: 0, y: 0, color: Color.RED, delay: 5, disposal: 'none'] + overrides
+    }
+
+    def 'frames are composited onto the canvas and scaled to fit'() {
+        setup:
+        def bytes = gif(20, 20, [
+                frame(color: Color.RED, delay: 10),
+                frame(width: 10, height: 10, x: 10, y: 10, color: Color.BLUE, delay: 30)])
+
+        when:
+        def animation = decode(bytes, new Dimension(10, 10), Long.MAX_VALUE)
+
+        then:
+        animation.frameCount == 2
+        animation.getDelayMillis(0) == 100
+        animation.getDelayMillis(1) == 300
+        animation.getFrame(1).width == 10
+        animation.getFrame(1).height == 10
+        // The second frame only covers the bottom right, so the first shows through everywhere else
+        new Color(animation.getFrame(1).getRGB(1, 1)) == Color.RED
+        new Color(animation.getFrame(1).getRGB(8, 8)) == Color.BLUE
+    }
+
+    def 'restoring to background clears the frame to transparent before the next one is drawn'() {
+        setup:
+        def bytes = gif(20, 20, [
+                frame(color: Color.RED, disposal: 'restoreToBackgroundColor'),
+                frame(width: 10, height: 10, color: Color.BLUE)])
+
+        when:
+        def animation = decode(bytes, null, Long.MAX_VALUE)
+
+        then:
+        new Color(animation.getFrame(1).getRGB(2, 2)) == Color.BLUE
+        new Color(animation.getFrame(1).getRGB(15, 15), true).alpha == 0
+    }
+
+    def 'restoring to previous puts back what was there before the frame'() {
+        setup:
+        def bytes = gif(20, 20, [
+                frame(color: Color.RED),
+                frame(color: Color.BLUE, disposal: 'restoreToPrevious'),
+                frame(width: 10, height: 10, color: Color.GREEN)])
+
+        when:
+        def animation = decode(bytes, null, Long.MAX_VALUE)
+
+        then:
+        new Color(animation.getFrame(1).getRGB(15, 15)) == Color.BLUE
+        new Color(animation.getFrame(2).getRGB(15, 15)) == Color.RED
+        new Color(animation.getFrame(2).getRGB(2, 2)) == Color.GREEN
+    }
+
+    def 'frames are dropped evenly to fit the allowance, keeping the total duration'() {
+        setup:
+        def bytes = gif(20, 20, (0..<6).collect { frame(delay: 10) })
+
+        when:
+        // Each 10x10 frame is 400 bytes, so there's room for three of them
+        def animation = decode(bytes, new Dimension(10, 10), 1200)
+
+        then:
+        animation.frameCount == 3
+        (0..<3).collect { animation.getDelayMillis(it) } == [200, 200, 200]
+        animation.bytes == 1200
+    }
+}
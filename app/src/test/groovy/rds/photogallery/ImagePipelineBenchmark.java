@@ -0,0 +1,118 @@
+package rds.photogallery;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Measures what each stage of getting a photo on screen costs, depending on the type of image the decoder handed back.
+ * Run it with "gradle benchmark". On a real display, painting goes to an accelerated surface like a panel's does. When
+ * headless, it goes to an image in the display format instead, which still shows the cost of format conversions but
+ * not of missing out on acceleration.
+ */
+public class ImagePipelineBenchmark {
+    private static final Dimension SOURCE_SIZE = new Dimension(2400, 1600);
+    private static final Dimension PANEL_SIZE = new Dimension(800, 600);
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        Map<String, Integer> sourceTypes = new LinkedHashMap<>();
+        sourceTypes.put("3BYTE_BGR (jpeg)", BufferedImage.TYPE_3BYTE_BGR);
+        sourceTypes.put("4BYTE_ABGR (png with alpha)", BufferedImage.TYPE_4BYTE_ABGR);
+        sourceTypes.put("BYTE_INDEXED (palette png/gif)", BufferedImage.TYPE_BYTE_INDEXED);
+        sourceTypes.put("BYTE_GRAY", BufferedImage.TYPE_BYTE_GRAY);
+        sourceTypes.put("INT_ARGB", BufferedImage.TYPE_INT_ARGB);
+        sourceTypes.put("INT_RGB", BufferedImage.TYPE_INT_RGB);
+        Function<Object[], Void> logger = objects -> null;
+        Supplier<Graphics2D> screen = screenGraphics();
+        System.out.printf("Display format is type %d. Times are milliseconds per operation.%n",
+                PhotoTools.createDisplayImage(1, 1).getType());
+        System.out.printf("%-32s %12s %12s %12s %14s %14s%n",
+                "source type", "scalr", "fused", "normalize", "paint as-is", "paint normal");
+        for (Map.Entry<String, Integer> sourceType : sourceTypes.entrySet()) {
+            BufferedImage source = sampleImage(SOURCE_SIZE, sourceType.getValue());
+            BufferedImage panelSized = sampleImage(PANEL_SIZE, sourceType.getValue());
+            double scalr = time(() -> PhotoTools.resizeImage(source, PANEL_SIZE, logger));
+            double fused = time(() -> PhotoTools.transformImage(source, 1, PANEL_SIZE, logger));
+            double normalize = time(() -> toDisplayFormatUncached(panelSized));
+            BufferedImage normalized = PhotoTools.toDisplayFormat(panelSized);
+            double paintAsIs = time(() -> paint(screen, panelSized));
+            double paintNormalized = time(() -> paint(screen, normalized));
+            System.out.printf("%-32s %12.2f %12.2f %12.2f %14.2f %14.2f%n",
+                    sourceType.getKey(), scalr, fused, normalize, paintAsIs, paintNormalized);
+        }
+    }
+
+    private static Supplier<Graphics2D> screenGraphics() {
+        if (GraphicsEnvironment.isHeadless()) {
+            BufferedImage target = PhotoTools.createDisplayImage(PANEL_SIZE.width, PANEL_SIZE.height);
+            return target::createGraphics;
+        }
+        GraphicsConfiguration configuration = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        VolatileImage target = configuration.createCompatibleVolatileImage(PANEL_SIZE.width, PANEL_SIZE.height);
+        return () -> {
+            target.validate(configuration);
+            return target.createGraphics();
+        };
+    }
+
+    private static Object paint(Supplier<Graphics2D> screen, BufferedImage image) {
+        Graphics2D graphics = screen.get();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        // Make sure the blit is done before the clock stops
+        Toolkit.getDefaultToolkit().sync();
+        return image;
+    }
+
+    /**
+     * The cost of normalizing, even when the source happens to already be in the display format.
+     */
+    private static BufferedImage toDisplayFormatUncached(BufferedImage image) {
+        BufferedImage result = PhotoTools.createDisplayImage(image.getWidth(), image.getHeight());
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    private static BufferedImage sampleImage(Dimension size, int type) {
+        BufferedImage image = new BufferedImage(size.width, size.height, type);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            // Something with detail in it, so nothing gets to take shortcuts on flat color
+            graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, size.width, size.height, Color.BLUE));
+            graphics.fillRect(0, 0, size.width, size.height);
+            graphics.setColor(Color.WHITE);
+            for (int x = 0; x < size.width; x += 7) {
+                graphics.drawLine(x, 0, size.width - x, size.height);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    private static double time(Supplier<Object> operation) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            operation.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            operation.get();
+        }
+        return (System.nanoTime() - start) / 1e6 / ROUNDS;
+    }
+}
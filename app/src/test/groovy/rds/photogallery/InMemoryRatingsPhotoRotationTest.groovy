@@ -0,0 +1,150 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.sqlite.SQLiteDataSource
+import spock.lang.Specification
+
+import java.sql.Connection
+
+class InMemoryRatingsPhotoRotationTest extends Specification {
+    def metrics = new Metrics(new SimpleMeterRegistry())
+    def dataSource = new SQLiteDataSource()
+
+    def setup() {
+        dataSource.url = 'jdbc:sqlite:' + new File(File.createTempDir(), 'photos.sqlite')
+        // Creates the tables
+        new RatingsIndex(dataSource, File.createTempDir().toString(), 1, metrics)
+    }
+
+    void photos(int rating, String cycle, List<String> paths) {
+        Connection conn = dataSource.getConnection()
+        def stmt = conn.prepareStatement(
+                'insert into photos (relative_path, rating, cycle, size, modified) values (?, ?, ?, 0, 0)')
+        paths.each {
+            stmt.setString(1, it)
+            stmt.setInt(2, rating)
+            stmt.setString(3, cycle)
+            stmt.execute()
+        }
+        conn.close()
+    }
+
+    Map<String, String> cycles() {
+        Connection conn = dataSource.getConnection()
+        def resultSet = conn.createStatement().executeQuery('select relative_path, cycle from photos')
+        def result = [:]
+        while (resultSet.next()) {
+            result[resultSet.getString(1)] = resultSet.getString(2)
+        }
+        conn.close()
+        result
+    }
+
+    def 'shows every photo of a rating once per cycle'() {
+        setup:
+        def paths = (1..10).collect { "${it}.jpg".toString() }
+        photos(3, 'none yet', paths)
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        when:
+        def firstCycle = (1..10).collect { rotation.next() }
+        def secondCycle = (1..10).collect { rotation.next() }
+
+        then:
+        firstCycle as Set == paths as Set
+        secondCycle as Set == paths as Set
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'picks up the cycle where the db left it'() {
+        setup:
+        photos(3, 'A', ['shown1.jpg', 'shown2.jpg'])
+        photos(3, 'B', ['waiting.jpg'])
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        expect:
+        rotation.next() == 'waiting.jpg'
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'draws ratings as often as the frequency chart says'() {
+        setup:
+        photos(0, 'none yet', (1..100).collect { "zero$it" })
+        photos(5, 'none yet', (1..100).collect { "five$it" })
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        when:
+        def fives = (1..3300).count { rotation.next().startsWith('five') }
+
+        then:
+        // 32 shares to 1
+        fives > 3100
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'saves what it has shown when closed'() {
+        setup:
+        photos(2, 'none yet', ['a.jpg', 'b.jpg', 'c.jpg'])
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        when:
+        def shown = rotation.next()
+        rotation.close()
+
+        then:
+        cycles() == ['a.jpg': 'none yet', 'b.jpg': 'none yet', 'c.jpg': 'none yet', (shown): 'A']
+        new InMemoryRatingsPhotoRotation(dataSource, metrics).with {
+            def rest = [next(), next()] as Set
+            close()
+            !rest.contains(shown)
+        }
+    }
+
+    def 'saves what it has shown when flushed and carries on'() {
+        setup:
+        photos(2, 'none yet', ['a.jpg', 'b.jpg', 'c.jpg'])
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        when:
+        def first = rotation.next()
+        rotation.flush()
+
+        then:
+        cycles()[first] == 'A'
+
+        when:
+        def rest = [rotation.next(), rotation.next()]
+
+        then:
+        ([first] + rest) as Set == ['a.jpg', 'b.jpg', 'c.jpg'] as Set
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'moves a photo when its rating changes'() {
+        setup:
+        photos(0, 'none yet', ['low.jpg', 'other.jpg'])
+        photos(5, 'none yet', ['high.jpg'])
+        def rotation = new InMemoryRatingsPhotoRotation(dataSource, metrics)
+
+        when:
+        rotation.ratingChanged('high.jpg', 0)
+        rotation.ratingChanged('low.jpg', 4)
+        def drawn = (1..200).collect { rotation.next() }
+
+        then:
+        // Rating 5 is gone, so everything comes from ratings 4 and 0, at 16 shares to 1
+        drawn as Set == ['high.jpg', 'low.jpg', 'other.jpg'] as Set
+        drawn.count { it == 'low.jpg' } > 150
+
+        cleanup:
+        rotation.close()
+    }
+}
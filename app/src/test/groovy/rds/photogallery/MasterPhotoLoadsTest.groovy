@@ -0,0 +1,125 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+
+class MasterPhotoLoadsTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def threads = []
+    def loadStarted = new CountDownLatch(1)
+    def finishLoad = new CountDownLatch(1)
+    def loadedSizes = Collections.synchronizedList([])
+
+    def cleanup() {
+        threads*.interrupt()
+    }
+
+    /**
+     * Loads block until they're told to finish, so tests can pile up requests behind them.
+     */
+    MasterPhotoLoads loads(Closure<CompletePhoto> onLoad = { path, size -> new CompletePhoto(path, image()) }) {
+        new MasterPhotoLoads({ String path, Dimension size ->
+            loadedSizes << size
+            loadStarted.countDown()
+            finishLoad.await()
+            onLoad(path, size)
+        }, new Metrics(registry))
+    }
+
+    /**
+     * Starts loading on a thread of its own, which is kept so tests can tell when it's blocked.
+     */
+    Future<MasterPhotoLoads.Master> load(MasterPhotoLoads loads, Dimension size) {
+        def task = new FutureTask<MasterPhotoLoads.Master>({ loads.load('foo.jpg', size) })
+        def thread = new Thread(task)
+        threads << thread
+        thread.start()
+        task
+    }
+
+    /**
+     * Waits for the last load started to block, which it does once it's waiting on the load ahead of it.
+     */
+    void awaitWaiting() {
+        Thread thread = threads.last()
+        while (thread.state != Thread.State.WAITING) {
+            Thread.onSpinWait()
+        }
+    }
+
+    static BufferedImage image() {
+        new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)
+    }
+
+    def 'concurrent loads of the same photo share one decode'() {
+        setup:
+        def loads = loads()
+        def first = load(loads, new Dimension(100, 100))
+        loadStarted.await()
+        def second = load(loads, new Dimension(50, 100))
+        awaitWaiting()
+
+        when:
+        finishLoad.countDown()
+
+        then:
+        first.get(5, TimeUnit.SECONDS).is(second.get(5, TimeUnit.SECONDS))
+        loadedSizes == [new Dimension(100, 100)]
+        registry.counter('master_loads.shared').count() == 1
+    }
+
+    def 'a load that needs more detail than the one in progress does its own'() {
+        setup:
+        def loads = loads()
+        def first = load(loads, new Dimension(100, 100))
+        loadStarted.await()
+        def second = load(loads, new Dimension(200, 100))
+
+        when:
+        finishLoad.countDown()
+
+        then:
+        !first.get(5, TimeUnit.SECONDS).is(second.get(5, TimeUnit.SECONDS))
+        loadedSizes as Set == [new Dimension(100, 100), new Dimension(200, 100)] as Set
+    }
+
+    def 'when the first load is cancelled, someone waiting on it takes over at the same size'() {
+        setup:
+        int attempts = 0
+        def loads = loads({ path, size ->
+            if (attempts++ == 0) {
+                throw new CancellationException('gave up')
+            }
+            new CompletePhoto(path, image())
+        })
+        def first = load(loads, new Dimension(100, 100))
+        loadStarted.await()
+        def second = load(loads, new Dimension(50, 50))
+        awaitWaiting()
+
+        when:
+        finishLoad.countDown()
+        def master = second.get(5, TimeUnit.SECONDS)
+
+        then:
+        master.decoded.relativePath == 'foo.jpg'
+        // At the first one's size, so it covers anyone else who was waiting, too
+        loadedSizes == [new Dimension(100, 100)] * 2
+
+        when:
+        first.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof CancellationException
+    }
+}
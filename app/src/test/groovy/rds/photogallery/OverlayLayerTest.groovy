@@ -0,0 +1,67 @@
+package rds.photogallery
+
+import spock.lang.Specification
+
+import java.awt.Dimension
+import java.awt.Font
+import java.awt.image.BufferedImage
+
+class OverlayLayerTest extends Specification {
+    def font = new Font(Font.DIALOG, Font.PLAIN, 12)
+    def fontMetrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics().getFontMetrics(font)
+    def size = new Dimension(200, 100)
+
+    def 'a layer is only good until the data, size, flags, or font change'() {
+        setup:
+        def data = new PhotoData('hash', 'dir/foo.jpg', 3)
+        def layer = OverlayLayer.render(data, size, OverlayLayer.SHOW_NAME, font, fontMetrics)
+
+        expect:
+        layer.isFor(data, new Dimension(200, 100), OverlayLayer.SHOW_NAME, font)
+        !layer.isFor(data, new Dimension(200, 101), OverlayLayer.SHOW_NAME, font)
+        !layer.isFor(data, size, OverlayLayer.SHOW_NAME | OverlayLayer.SHOW_TAGS, font)
+        !layer.isFor(data, size, OverlayLayer.SHOW_NAME, font.deriveFont(14f))
+        !layer.isFor(new PhotoData('hash', 'dir/foo.jpg', 3), size, OverlayLayer.SHOW_NAME, font)
+
+        when:
+        data.rating = 4
+
+        then:
+        !layer.isFor(data, size, OverlayLayer.SHOW_NAME, font)
+
+        when:
+        layer = OverlayLayer.render(data, size, OverlayLayer.SHOW_NAME, font, fontMetrics)
+        data.userTags = ['beach']
+
+        then:
+        !layer.isFor(data, size, OverlayLayer.SHOW_NAME, font)
+    }
+
+    def 'text is drawn at the bottom of the panel, leaving the rest untouched'() {
+        setup:
+        def data = new PhotoData('hash', 'dir/foo.jpg', 5)
+        def layer = OverlayLayer.render(data, size, OverlayLayer.SHOW_RATING, font, fontMetrics)
+        def panel = new BufferedImage(200, 100, BufferedImage.TYPE_INT_ARGB)
+
+        when:
+        def graphics = panel.createGraphics()
+        layer.drawOn(graphics)
+        graphics.dispose()
+
+        then:
+        (0..<50).every { y -> (0..<200).every { x -> panel.getRGB(x, y) == 0 } }
+        (50..<100).any { y -> (0..<200).any { x -> panel.getRGB(x, y) != 0 } }
+    }
+
+    def 'ratings are shown as stars, X for zero, or U for unrated'() {
+        expect:
+        OverlayLayer.ratingText(rating) == text
+
+        where:
+        rating            | text
+        PhotoData.UNRATED | 'U'
+        0                 | 'X'
+        1                 | '*'
+        5                 | '*****'
+    }
+}
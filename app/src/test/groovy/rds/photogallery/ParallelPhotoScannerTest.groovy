@@ -0,0 +1,63 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+
+class ParallelPhotoScannerTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def photoDir = File.createTempDir()
+
+    void file(String path) {
+        def file = new File(photoDir, path)
+        file.parentFile.mkdirs()
+        file.text = path
+    }
+
+    def 'finds photos throughout the tree with their attributes'() {
+        setup:
+        ['a.jpg', 'b.JPEG', 'x/c.png', 'x/y/d.Gif', 'x/y/z/e.jpg', 'x/y/z/e-rewrite.jpg', 'notes.txt', 'x/jpg']
+                .each { file(it) }
+        Map<String, Long> found = new ConcurrentHashMap<>()
+
+        when:
+        def count = new ParallelPhotoScanner(photoDir.toPath(), 4, new Metrics(registry)).scan({ path, attributes ->
+            found[path] = attributes.size()
+        } as ParallelPhotoScanner.Listener)
+
+        then:
+        count == 5
+        found == ['a.jpg': 5L, 'b.JPEG': 6L, 'x/c.png': 7L, 'x/y/d.Gif': 9L, 'x/y/z/e.jpg': 11L]
+        registry.counter('photo_scan.files').count() == 5
+        registry.summary('photo_scan.files_per_second').count() == 1
+    }
+
+    def 'stops listing directories once told to'() {
+        setup:
+        ['a.jpg', 'x/b.jpg', 'x/y/c.jpg'].each { file(it) }
+
+        when:
+        def count = new ParallelPhotoScanner(photoDir.toPath(), 4, new Metrics(registry))
+                .scan({ path, attributes -> } as ParallelPhotoScanner.Listener, { true })
+
+        then:
+        count == 0
+    }
+
+    def 'recognizes photo file names regardless of case'() {
+        expect:
+        ParallelPhotoScanner.isPhotoFileName(name) == photo
+
+        where:
+        name          | photo
+        'foo.jpg'     | true
+        'FOO.JPG'     | true
+        'foo.jpeg'    | true
+        'foo.Png'     | true
+        'foo.gif'     | true
+        'foo.jpg.txt' | false
+        'jpg'         | false
+        ''            | false
+    }
+}
@@ -0,0 +1,128 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.image.BufferedImage
+
+class PhotoHistoryTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def metrics = new Metrics(registry)
+
+    // Each one is a 10x10 int image, so 400 bytes
+    static CompletePhoto photo(String path) {
+        new CompletePhoto(path, new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB))
+    }
+
+    def 'steps back and forward through retained photos'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1024 * 1024, metrics)
+        def a = photo('a.jpg')
+        def b = photo('b.jpg')
+        def c = photo('c.jpg')
+        [a, b, c].each { history.record('panel', it) }
+
+        expect:
+        history.back('panel').photo.is(b)
+        history.back('panel').photo.is(a)
+        history.back('panel') == null
+        history.forward('panel').photo.is(b)
+        history.forward('panel').photo.is(c)
+        history.forward('panel') == null
+        registry.counter('history_cache.hits').count() == 4
+    }
+
+    def 'reshowing the current photo updates it instead of adding to the history'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1024 * 1024, metrics)
+        history.record('panel', photo('a.jpg'))
+        history.record('panel', photo('b.jpg'))
+        def a = history.back('panel').photo
+        def resizedA = photo('a.jpg')
+
+        when:
+        history.record('panel', a)
+        history.record('panel', resizedA)
+
+        then:
+        history.forward('panel').path == 'b.jpg'
+        history.back('panel').photo.is(resizedA)
+        history.bytesHeld == 800
+    }
+
+    def 'showing something new after going back drops what was ahead'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1024 * 1024, metrics)
+        ['a.jpg', 'b.jpg', 'c.jpg'].each { history.record('panel', photo(it)) }
+        history.back('panel')
+        history.record('panel', history.back('panel').photo)
+
+        when:
+        history.record('panel', photo('d.jpg'))
+
+        then:
+        history.forward('panel') == null
+        history.back('panel').path == 'a.jpg'
+        history.bytesHeld == 800
+    }
+
+    def 'stepping only moves the history once the photo is shown'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1024 * 1024, metrics)
+        ['a.jpg', 'b.jpg', 'c.jpg'].each { history.record('panel', photo(it)) }
+
+        when: 'it steps back, but something else is shown instead'
+        history.back('panel')
+        history.record('panel', photo('d.jpg'))
+
+        then: 'what was on display is kept, with the new one after it'
+        history.back('panel').path == 'c.jpg'
+        history.back('panel').path == 'b.jpg'
+        history.back('panel').path == 'a.jpg'
+        history.forward('panel').path == 'b.jpg'
+    }
+
+    def 'keeps a limited number of photos per panel'() {
+        setup:
+        def history = new PhotoHistory<String>(2, 1024 * 1024, metrics)
+        ['a.jpg', 'b.jpg', 'c.jpg'].each { history.record('panel', photo(it)) }
+
+        expect:
+        history.back('panel').path == 'b.jpg'
+        history.back('panel') == null
+        history.bytesHeld == 800
+    }
+
+    def 'drops the least recently used photos over the memory limit but remembers their paths'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1000, metrics)
+        history.record('one', photo('a.jpg'))
+        history.record('two', photo('b.jpg'))
+        history.record('one', photo('c.jpg'))
+
+        when:
+        def a = history.back('one')
+
+        then:
+        a.path == 'a.jpg'
+        a.photo == null
+        history.back('two') == null
+        history.bytesHeld == 800
+        registry.counter('history_cache.evictions').count() == 1
+        registry.counter('history_cache.misses').count() == 1
+    }
+
+    def 'forgets everything about a panel'() {
+        setup:
+        def history = new PhotoHistory<String>(10, 1024 * 1024, metrics)
+        history.record('panel', photo('a.jpg'))
+        history.record('panel', photo('b.jpg'))
+
+        when:
+        history.forget('panel')
+
+        then:
+        history.back('panel') == null
+        history.bytesHeld == 0
+    }
+}
@@ -0,0 +1,81 @@
+package rds.photogallery
+
+import spock.lang.Specification
+
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+
+class PhotoToolsTest extends Specification {
+    def 'decode subsampling leaves at least twice the target size once the photo is upright'() {
+        expect:
+        PhotoTools.decodeSubsampling(width, height, new Dimension(targetWidth, targetHeight), orientation) == subsampling
+
+        where:
+        width | height | orientation | targetWidth | targetHeight || subsampling
+        6000  | 4000   | 1           | 480         | 270          || 7
+        4000  | 6000   | 1           | 480         | 270          || 11
+        6000  | 4000   | 6           | 480         | 270          || 11
+        6000  | 4000   | 1           | 1920        | 1080         || 1
+        1000  | 1000   | 8           | 100         | 100          || 5
+        800   | 600    | 1           | 1920        | 1080         || 1
+        800   | 600    | 1           | 0           | 0            || 1
+    }
+
+    static final int RED = Color.RED.RGB & 0xffffff
+    static final int BLUE = Color.BLUE.RGB & 0xffffff
+
+    /**
+     * A 40x20 image with a red left half and a blue right half, so it's easy to tell which way it's been turned.
+     */
+    static BufferedImage halfRedHalfBlue() {
+        def image = new BufferedImage(40, 20, BufferedImage.TYPE_3BYTE_BGR)
+        def graphics = image.createGraphics()
+        graphics.color = Color.RED
+        graphics.fillRect(0, 0, 20, 20)
+        graphics.color = Color.BLUE
+        graphics.fillRect(20, 0, 20, 20)
+        graphics.dispose()
+        image
+    }
+
+    static int rgb(BufferedImage image, int x, int y) {
+        image.getRGB(x, y) & 0xffffff
+    }
+
+    def 'transform turns and scales an image to fit in one pass'() {
+        when:
+        def result = PhotoTools.transformImage(halfRedHalfBlue(), orientation, new Dimension(100, 100), { null })
+
+        then:
+        result.width == width
+        result.height == height
+        result.type == BufferedImage.TYPE_INT_RGB
+        rgb(result, firstX, firstY) == RED
+        rgb(result, secondX, secondY) == BLUE
+
+        where:
+        orientation || width | height | firstX | firstY | secondX | secondY
+        1           || 100   | 50     | 10     | 25     | 90      | 25
+        2           || 100   | 50     | 90     | 25     | 10      | 25
+        3           || 100   | 50     | 90     | 25     | 10      | 25
+        6           || 50    | 100    | 25     | 10     | 25      | 90
+        8           || 50    | 100    | 25     | 90     | 25      | 10
+    }
+
+    def 'transform result always fits the target size'() {
+        when:
+        def result = PhotoTools.transformImage(
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), orientation, target, { null })
+
+        then:
+        PhotoTools.imageFits(result, target)
+
+        where:
+        width | height | orientation | target
+        4000  | 3000   | 1           | new Dimension(480, 270)
+        4000  | 3000   | 6           | new Dimension(480, 270)
+        333   | 777    | 1           | new Dimension(1920, 1080)
+        1     | 1000   | 1           | new Dimension(640, 480)
+    }
+}
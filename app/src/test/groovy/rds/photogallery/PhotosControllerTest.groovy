@@ -0,0 +1,232 @@
+package rds.photogallery
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import javax.imageio.ImageIO
+import java.awt.Dimension
+import java.awt.Transparency
+import java.awt.image.BufferedImage
+
+class PhotosControllerTest extends Specification {
+    def app = App.instance
+    def rootDir = File.createTempDir()
+    def size = new Dimension(100, 75)
+    PhotosController controller
+
+    def setup() {
+        app.settings = new Settings()
+        app.metrics = new Metrics(new SimpleMeterRegistry())
+        app.animationClock = new AnimationClock(1024 * 1024, app.metrics)
+        app.rootDir = rootDir.toString()
+        app.photoContentLoader = new FileSystemPhotoContentLoader(rootDir.toString())
+        app.workPool = new PriorityWorkPool(1, new ThreadFactoryBuilder().setDaemon(true).build(), app.metrics)
+        Settings.Setting.DERIVATIVE_CACHE_DIR.value = File.createTempDir().toString()
+        def photo = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB)
+        for (int x = 0; x < 400; x++) {
+            for (int y = 0; y < 300; y++) {
+                photo.setRGB(x, y, (x % 7) * 0x240000 | (y % 5) * 0x3300 | (x + y) % 256)
+            }
+        }
+        ImageIO.write(photo, 'jpg', new File(rootDir, 'photo.jpg'))
+        controller = new PhotosController(Mock(PhotoRotation))
+    }
+
+    def cleanup() {
+        Settings.Setting.DERIVATIVE_CACHE_DIR.value = 'derivative-cache'
+    }
+
+    def 'a decoded photo is previewed first, then replaced by the full quality scaling'() {
+        setup:
+        List<CompletePhoto> previews = []
+
+        when:
+        def result = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false }, previews.&add)
+
+        then:
+        previews.size() == 1
+        previews[0].preview
+        !result.preview
+        result.relativePath == 'photo.jpg'
+        // The same pixels the fused transform's full quality pass makes from the same decode
+        def decoded = app.photoContentLoader.load('photo.jpg', size).image
+        def expected = PhotoTools.transformImage(decoded, 1, size, false, null, Transparency.OPAQUE, { null })
+        pixels(result.image) == pixels(expected)
+        pixels(result.image) != pixels(previews[0].image)
+    }
+
+    def 'the pass after a preview is full quality even when the pacer has cut back'() {
+        setup:
+        controller.pacer.qualityLevel = 3
+        List<CompletePhoto> previews = []
+
+        when:
+        def result = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false }, previews.&add)
+
+        then:
+        controller.pacer.fastTransform()
+        def decoded = app.photoContentLoader.load('photo.jpg', size).image
+        pixels(result.image) == pixels(PhotoTools.transformImage(decoded, 1, size, false, null, Transparency.OPAQUE,
+                { null }))
+    }
+
+    def 'a photo scaled fast while the pacer has cut back is not kept'() {
+        setup:
+        controller.pacer.qualityLevel = 3
+
+        when:
+        def fast = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false })
+        controller.pacer.qualityLevel = 0
+        def again = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false })
+
+        then:
+        !again.image.is(fast.image)
+        pixels(again.image) != pixels(fast.image)
+        controller.scaledImageCache.get('photo.jpg', size).is(again.image)
+    }
+
+    def 'a mirrored photo is turned upright after its preview'() {
+        setup:
+        def loader = app.photoContentLoader
+        app.photoContentLoader = Stub(PhotoContentLoader) {
+            load(_ as String, _ as Dimension) >> { String path, Dimension targetSize ->
+                def photo = loader.load(path, targetSize)
+                // Transposed, so it's sideways as well as mirrored
+                photo.orientation = 5
+                photo
+            }
+        }
+        List<CompletePhoto> previews = []
+
+        when:
+        def result = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false }, previews.&add)
+
+        then:
+        previews.size() == 1
+        !result.preview
+        result.image.height == 75
+        result.image.width < result.image.height
+    }
+
+    def 'a cached photo is full quality already, so it gets no preview'() {
+        setup:
+        List<CompletePhoto> previews = []
+        def first = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false }, previews.&add)
+        previews.clear()
+
+        when:
+        def again = controller.producePhoto(new PhotoPanel('test'), 'photo.jpg', size, { false }, previews.&add)
+
+        then:
+        previews.isEmpty()
+        again.image.is(first.image)
+    }
+
+    def 'the old rotation is flushed and keeps drawing while the new one is made'() {
+        setup:
+        def old = Mock(PhotoRotation)
+        def replacement = Mock(PhotoRotation)
+        controller = new PhotosController(old)
+        String drawnMeanwhile = null
+
+        when:
+        controller.switchRotation {
+            drawnMeanwhile = controller.nextFromRotation()
+            replacement
+        }
+
+        then:
+        1 * old.flush()
+
+        then:
+        1 * old.next() >> 'old.jpg'
+
+        then:
+        1 * old.close()
+        drawnMeanwhile == 'old.jpg'
+
+        when:
+        def drawnAfter = controller.nextFromRotation()
+
+        then:
+        1 * replacement.next() >> 'new.jpg'
+        drawnAfter == 'new.jpg'
+    }
+
+    def 'a load that finishes after its panel is gone is cancelled and goes nowhere'() {
+        setup:
+        def panel = new PhotoPanel('test')
+        def state = new PhotosController.PhotoPanelState(panel, 'photo.jpg', {})
+        controller.photoPanelStates[panel] = state
+        def load = new PhotosController.PhotoLoad(state, 'photo.jpg')
+        state.inFlight = load
+        load.start()
+
+        when:
+        controller.unmanagePanel(panel)
+        controller.deliver(state, new CompletePhoto('photo.jpg', new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB)))
+
+        then:
+        load.cancelled
+        panel.photoOnDisplay == null
+        controller.history.rings.isEmpty()
+    }
+
+    def 'prefetching leaves alone a panel that is no longer managed'() {
+        setup:
+        def panel = new PhotoPanel('test')
+        panel.setSize(100, 75)
+
+        when:
+        controller.prefetcher.topUp(panel)
+
+        then:
+        0 * controller.photoRotation.next()
+        controller.prefetcher.readyPhotos.isEmpty()
+        controller.prefetcher.inFlight.isEmpty()
+    }
+
+    def 'a batch stops waiting on a panel that is given something else'() {
+        setup:
+        def first = new PhotosController.PhotoPanelState(new PhotoPanel('first'), 'a.jpg', {})
+        def second = new PhotosController.PhotoPanelState(new PhotoPanel('second'), 'b.jpg', {})
+        def batch = new PhotosController.RevealBatch(controller, [first, second])
+        first.assignPhotoPath('a.jpg', WorkPriority.USER_CHANGE, batch)
+        second.assignPhotoPath('b.jpg', WorkPriority.USER_CHANGE, batch)
+        batch.hold(first, new CompletePhoto('a.jpg', new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB)))
+
+        when:
+        second.assignPhotoPath('c.jpg', WorkPriority.USER_CHANGE)
+
+        then:
+        !batch.pending
+    }
+
+    def 'a batch stops waiting on a panel that fails'() {
+        setup:
+        def first = new PhotosController.PhotoPanelState(new PhotoPanel('first'), 'a.jpg', {})
+        def second = new PhotosController.PhotoPanelState(new PhotoPanel('second'), 'b.jpg', {})
+        def batch = new PhotosController.RevealBatch(controller, [first, second])
+        first.assignPhotoPath('a.jpg', WorkPriority.USER_CHANGE, batch)
+        second.assignPhotoPath('b.jpg', WorkPriority.USER_CHANGE, batch)
+
+        when:
+        first.failure(first.photoPanel, 'a.jpg', new IOException('unreadable'))
+
+        then:
+        // Still waiting on the other one
+        batch.pending
+        first.batch == null
+
+        when:
+        batch.hold(second, new CompletePhoto('b.jpg', new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB)))
+
+        then:
+        !batch.pending
+    }
+
+    static int[] pixels(BufferedImage image) {
+        image.getRGB(0, 0, image.width, image.height, null, 0, image.width)
+    }
+}
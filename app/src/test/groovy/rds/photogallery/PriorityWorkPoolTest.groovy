@@ -0,0 +1,75 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class PriorityWorkPoolTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def pool = new PriorityWorkPool(1, Executors.defaultThreadFactory(), new Metrics(registry))
+
+    def cleanup() {
+        pool.shutdown()
+    }
+
+    /**
+     * Ties up the pool's only worker until the returned latch is released, so work piles up behind it.
+     */
+    CountDownLatch blockWorker() {
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        pool.submit(WorkPriority.SPECULATIVE, {
+            started.countDown()
+            release.await()
+        })
+        started.await()
+        release
+    }
+
+    def 'waiting work runs most urgent first, then first come first served'() {
+        setup:
+        def release = blockWorker()
+        def ran = Collections.synchronizedList([])
+        def done = new CountDownLatch(5)
+        [['prefetch', WorkPriority.SPECULATIVE], ['auto', WorkPriority.AUTO_CHANGE],
+         ['empty 1', WorkPriority.EMPTY_PANEL], ['user', WorkPriority.USER_CHANGE],
+         ['empty 2', WorkPriority.EMPTY_PANEL]].each { name, priority ->
+            pool.submit(priority as WorkPriority, {
+                ran << name
+                done.countDown()
+            })
+        }
+
+        expect:
+        pool.queuedCount(WorkPriority.EMPTY_PANEL) == 2
+        registry.get('work_queue.depth.EMPTY_PANEL').gauge().value() == 2
+
+        when:
+        release.countDown()
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        ran == ['user', 'empty 1', 'empty 2', 'auto', 'prefetch']
+        registry.get('work_queue.wait.USER_CHANGE').timer().count() == 1
+    }
+
+    def 'cancelled work never runs and stops counting as queued'() {
+        setup:
+        def release = blockWorker()
+        boolean ran = false
+        def future = pool.submit(WorkPriority.REFRESH, { ran = true })
+
+        when:
+        future.cancel(false)
+        release.countDown()
+        def after = pool.submit(WorkPriority.REFRESH, {})
+        after.get(5, TimeUnit.SECONDS)
+
+        then:
+        !ran
+        pool.queuedCount(WorkPriority.REFRESH) == 0
+    }
+}
@@ -0,0 +1,97 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+import spock.lang.Timeout
+import spock.util.concurrent.PollingConditions
+
+class RandomDirWalkPhotoRotationTest extends Specification {
+    def metrics = new Metrics(new SimpleMeterRegistry())
+    def photoDir = File.createTempDir()
+
+    void file(String path) {
+        def file = new File(photoDir, path)
+        file.parentFile.mkdirs()
+        file.text = path
+    }
+
+    def rotation(boolean uniformByPhoto, boolean scanInBackground = true) {
+        new RandomDirWalkPhotoRotation(photoDir.toPath(), uniformByPhoto, 30, scanInBackground, 4, metrics)
+    }
+
+    @Timeout(10)
+    def 'only ever lands on photos, even with dead end directories around'() {
+        setup:
+        ['a.jpg', 'x/notes.txt', 'x/y/z/readme.txt', 'w/w-rewrite.jpg', 'v/b.png'].each { file(it) }
+        new File(photoDir, 'empty/emptier').mkdirs()
+        def rotation = rotation(false)
+
+        when:
+        def picked = (1..200).collect { rotation.next() } as Set
+
+        then:
+        picked == ['a.jpg', 'v/b.png'] as Set
+    }
+
+    @Timeout(10)
+    def 'says so when there are no photos at all'() {
+        setup:
+        file('x/notes.txt')
+        new File(photoDir, 'empty').mkdirs()
+
+        when:
+        rotation(false).next()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def 'picks evenly among photos once the tree is scanned'() {
+        setup:
+        file('lonely.jpg')
+        (1..9).each { file("crowded/${it}.jpg") }
+        def rotation = rotation(true)
+        rotation.next()
+        new PollingConditions(timeout: 10).eventually {
+            assert rotation.complete
+        }
+        // Delete a photo so it's clear the walk doesn't go back to the disk
+        new File(photoDir, 'crowded/1.jpg').delete()
+
+        when:
+        def counts = (1..10000).collect { rotation.next() }.countBy { it }
+
+        then:
+        counts.keySet() == (['lonely.jpg'] + (1..9).collect { "crowded/${it}.jpg".toString() }) as Set
+        // By directory, lonely.jpg would come up half the time instead of a tenth
+        counts['lonely.jpg'] < 1500
+    }
+
+    def 'leaves the tree alone when the background scan is off'() {
+        setup:
+        (1..3).each { file("x/${it}.jpg") }
+        def rotation = rotation(true, false)
+
+        when:
+        rotation.next()
+        sleep(200)
+
+        then:
+        !rotation.complete
+        !rotation.scanning
+    }
+
+    def 'throws away a scan that finishes after the rotation is closed'() {
+        setup:
+        (1..3).each { file("x/${it}.jpg") }
+        def rotation = rotation(true)
+
+        when:
+        rotation.close()
+        rotation.scan()
+
+        then:
+        !rotation.complete
+        !rotation.scanning
+    }
+}
@@ -0,0 +1,158 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.sqlite.SQLiteDataSource
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+import java.sql.Connection
+
+class RatingsIndexTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def metrics = new Metrics(registry)
+    def photoDir = File.createTempDir()
+    def dataSource = new SQLiteDataSource()
+    def photoData = new MemoryPhotoDataSource([:], { true }, photoDir)
+
+    def setup() {
+        dataSource.url = 'jdbc:sqlite:' + new File(File.createTempDir(), 'photos.sqlite')
+    }
+
+    File photo(String path) {
+        def file = new File(photoDir, path)
+        file.parentFile.mkdirs()
+        file.text = path
+        file
+    }
+
+    RatingsIndex index() {
+        new RatingsIndex(dataSource, photoDir.toString(), 4, metrics)
+    }
+
+    Map<String, List> rows() {
+        Connection conn = dataSource.getConnection()
+        def resultSet = conn.createStatement().executeQuery('select relative_path, rating, cycle from photos')
+        def result = [:]
+        while (resultSet.next()) {
+            result[resultSet.getString(1)] = [resultSet.getInt(2), resultSet.getString(3)]
+        }
+        conn.close()
+        result
+    }
+
+    void setCycle(String path, String cycle) {
+        Connection conn = dataSource.getConnection()
+        def stmt = conn.prepareStatement('update photos set cycle = ? where relative_path = ?')
+        stmt.setString(1, cycle)
+        stmt.setString(2, path)
+        stmt.execute()
+        conn.close()
+    }
+
+    def 'indexes every photo and nothing else'() {
+        setup:
+        photo('a.jpg')
+        photo('dir/b.PNG')
+        photo('dir/c-rewrite.jpg')
+        photo('notes.txt')
+        def index = index()
+
+        expect:
+        !index.hasPhotos()
+
+        when:
+        index.update(photoData, { true })
+
+        then:
+        index.hasPhotos()
+        rows().keySet() == ['a.jpg', 'dir/b.PNG'] as Set
+        rows()['a.jpg'] == [PhotoData.UNRATED, 'none yet']
+        registry.timer('ratings_index_scan').count() == 1
+        registry.timer('ratings_index_diff').count() == 1
+        registry.timer('ratings_index_apply').count() == 1
+    }
+
+    def 'later updates only apply what changed and keep cycle progress'() {
+        setup:
+        def unchanged = photo('unchanged.jpg')
+        def modified = photo('modified.jpg')
+        def removed = photo('removed.jpg')
+        photo('rerated.jpg')
+        index().update(photoData, { true })
+        ['unchanged.jpg', 'modified.jpg', 'rerated.jpg'].each { setCycle(it, 'A') }
+
+        when:
+        Files.setLastModifiedTime(modified.toPath(), FileTime.fromMillis(modified.lastModified() + 5000))
+        removed.delete()
+        photo('added.jpg')
+        photoData.getPhotoData('rerated.jpg').rating = 4
+        // A new index on the same db, like after a restart
+        index().update(photoData, { true })
+
+        then:
+        rows() == [
+                'unchanged.jpg': [PhotoData.UNRATED, 'A'],
+                'modified.jpg' : [PhotoData.UNRATED, 'A'],
+                'rerated.jpg'  : [4, 'A'],
+                'added.jpg'    : [PhotoData.UNRATED, 'none yet'],
+        ]
+        unchanged.exists()
+    }
+
+    def 'photos turned down by the predicate are left out'() {
+        setup:
+        photo('keep.jpg')
+        photo('skip/this.jpg')
+        def index = index()
+        index.update(photoData, { true })
+
+        when:
+        index.update(photoData, { PhotoData it -> !it.relativePath.startsWith('skip') })
+
+        then:
+        rows().keySet() == ['keep.jpg'] as Set
+    }
+
+    def 'gives photos kept from before shuffle keys a place in the random order'() {
+        setup:
+        Connection conn = dataSource.getConnection()
+        conn.createStatement().execute('create table photos(relative_path text primary key, ' +
+                'rating integer not null, cycle text not null, size integer not null, modified integer not null)')
+        conn.createStatement().execute("insert into photos (relative_path, rating, cycle, size, modified) values " +
+                "('a.jpg', 1, 'A', 0, 0), ('b.jpg', 1, 'none yet', 0, 0)")
+        conn.close()
+
+        when:
+        index()
+        conn = dataSource.getConnection()
+        def resultSet = conn.createStatement().executeQuery('select shuffle_key from photos')
+        def keys = []
+        while (resultSet.next()) {
+            keys << resultSet.getLong(1)
+        }
+        conn.close()
+
+        then:
+        rows() == ['a.jpg': [1, 'A'], 'b.jpg': [1, 'none yet']]
+        keys.size() == 2
+        keys.any { it != 0 }
+    }
+
+    def 'replaces the index left by older versions'() {
+        setup:
+        Connection conn = dataSource.getConnection()
+        conn.createStatement().execute(
+                'create table photos(pk serial primary key, relative_path text not null, rating integer not null, ' +
+                        'cycle text not null)')
+        conn.createStatement().execute("insert into photos (relative_path, rating, cycle) values ('old.jpg', 1, 'A')")
+        conn.close()
+        photo('new.jpg')
+
+        when:
+        index().update(photoData, { true })
+
+        then:
+        rows().keySet() == ['new.jpg'] as Set
+    }
+}
@@ -0,0 +1,147 @@
+package rds.photogallery;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures how many photos per second each way of drawing from the ratings db can manage, on a made up library of
+ * photos spread evenly over the ratings. Run it with "gradle rotationBenchmark", optionally with the number of photos
+ * and the seconds to spend on each as arguments, like --args="200000 10".
+ *
+ * The legacy draw is how the sqlite rotation used to work, with a connection, a stats query, and an order by random()
+ * for every photo, both with and without the (rating, cycle, shuffle key) index. Per-draw stats logging is turned off
+ * for the rotations being measured, since it's just formatting a line now, so the legacy stats query is the only stats
+ * cost counted.
+ */
+public class RotationBenchmark {
+    private static final int DEFAULT_PHOTOS = 100_000;
+    private static final int DEFAULT_SECONDS = 5;
+    private static final int[] RATINGS = {0, 1, 2, 3, 4, 5};
+
+    public static void main(String[] args) throws Exception {
+        int photos = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PHOTOS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        Configurator.setLevel(SqliteRatingsBasedPhotoRotation.class.getName(), Level.WARN);
+        Configurator.setLevel(InMemoryRatingsPhotoRotation.class.getName(), Level.WARN);
+        File dir = Files.createTempDirectory("rotation-benchmark").toFile();
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + new File(dir, "photos.sqlite"));
+        // The same as the app
+        dataSource.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL.toString());
+        dataSource.setJournalMode(SQLiteConfig.JournalMode.WAL.toString());
+        dataSource.setBusyTimeout(10000);
+        Metrics metrics = new Metrics(new SimpleMeterRegistry());
+        new RatingsIndex(dataSource, dir.toString(), 1, metrics);
+        fill(dataSource, photos);
+        System.out.printf("%d photos, %d seconds each%n", photos, seconds);
+        System.out.printf("%-28s %14s%n", "rotation", "draws/sec");
+
+        execute(dataSource, "drop index photos_by_rating_cycle_key");
+        Map<Integer, String> cycles = new HashMap<>();
+        report("legacy, no index", seconds, dataSource, () -> legacyNext(dataSource, cycles));
+        new RatingsIndex(dataSource, dir.toString(), 1, metrics);
+        report("legacy, indexed", seconds, dataSource, () -> legacyNext(dataSource, cycles));
+        SqliteRatingsBasedPhotoRotation sqlite = new SqliteRatingsBasedPhotoRotation(dataSource, metrics);
+        report("sqlite rotation", seconds, dataSource, sqlite::next);
+        sqlite.close();
+        InMemoryRatingsPhotoRotation inMemory = new InMemoryRatingsPhotoRotation(dataSource, metrics);
+        report("in-memory rotation", seconds, dataSource, inMemory::next);
+        inMemory.close();
+    }
+
+    private static void report(String name, int seconds, SQLiteDataSource dataSource, Supplier<String> draw)
+            throws SQLException {
+        long count = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            draw.get();
+            count++;
+        }
+        System.out.printf("%-28s %14.0f%n", name, count / (double) seconds);
+        // Start the next one from the same place
+        execute(dataSource, "update photos set cycle = 'none yet'");
+        execute(dataSource, "delete from rating_cycles");
+    }
+
+    private static void fill(SQLiteDataSource dataSource, int photos) throws SQLException {
+        Random rand = new Random(1);
+        try (Connection conn = dataSource.getConnection(); PreparedStatement insert = conn.prepareStatement(
+                "insert into photos (relative_path, rating, cycle, size, modified) values (?, ?, 'none yet', 0, 0)")) {
+            conn.setAutoCommit(false);
+            for (int i = 0; i < photos; i++) {
+                insert.setString(1, String.format("dir%03d/photo%07d.jpg", i % 500, i));
+                insert.setInt(2, RATINGS[rand.nextInt(RATINGS.length)]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+    }
+
+    private static void execute(SQLiteDataSource dataSource, String sql) throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * One draw the way the sqlite rotation used to do it, with stats logging on, as it is by default.
+     */
+    private static String legacyNext(SQLiteDataSource dataSource, Map<Integer, String> cycles) {
+        List<Integer> shares = new ArrayList<>();
+        for (int rating : RATINGS) {
+            shares.addAll(Collections.nCopies(SqliteRatingsBasedPhotoRotation.FREQUENCY_CHART.get(rating), rating));
+        }
+        int rating = shares.get(new Random().nextInt(shares.size()));
+        String cycle = cycles.getOrDefault(rating, "A");
+        try (Connection conn = dataSource.getConnection()) {
+            try (Statement statement = conn.createStatement(); ResultSet stats = statement.executeQuery(
+                    "select rating, cycle, count(*) from photos group by rating, cycle order by rating")) {
+                while (stats.next()) {
+                    stats.getInt(3);
+                }
+            }
+            String result = legacyFindOne(conn, rating, cycle);
+            if (result == null) {
+                cycle = cycle.equals("A") ? "B" : "A";
+                cycles.put(rating, cycle);
+                SqliteRatingsBasedPhotoRotation.saveCycle(conn, rating, cycle);
+                result = legacyFindOne(conn, rating, cycle);
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String legacyFindOne(Connection conn, int rating, String cycle) throws SQLException {
+        try (PreparedStatement find = conn.prepareStatement(
+                "select relative_path from photos where rating = ? and cycle != ? order by random() limit 1")) {
+            find.setInt(1, rating);
+            find.setString(2, cycle);
+            try (ResultSet resultSet = find.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                String result = resultSet.getString(1);
+                try (PreparedStatement update = conn.prepareStatement(
+                        "update photos set cycle = ? where relative_path = ?")) {
+                    update.setString(1, cycle);
+                    update.setString(2, result);
+                    update.execute();
+                }
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+
+class ScaledImageCacheTest extends Specification {
+    def registry = new SimpleMeterRegistry()
+    def metrics = new Metrics(registry)
+
+    static BufferedImage image(int width, int height) {
+        new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+    }
+
+    def 'returns a cached image only for the same path, size, and orientation'() {
+        setup:
+        def cache = new ScaledImageCache('test', 1024 * 1024, metrics)
+        def cached = image(10, 10)
+        cache.put('dir/foo.jpg', new Dimension(10, 10), 1, cached)
+
+        expect:
+        cache.get('dir/foo.jpg', new Dimension(10, 10), 1).is(cached)
+        cache.get('dir/foo.jpg', new Dimension(10, 20), 1) == null
+        cache.get('dir/foo.jpg', new Dimension(10, 10), 6) == null
+        cache.get('dir/bar.jpg', new Dimension(10, 10), 1) == null
+        registry.counter('test_cache.hits').count() == 1
+        registry.counter('test_cache.misses').count() == 3
+    }
+
+    def 'evicts least recently used images once the byte budget is exceeded'() {
+        setup:
+        // Each 10x10 int image is 400 bytes, so this holds two of them
+        def cache = new ScaledImageCache('test', 1000, metrics)
+        def size = new Dimension(10, 10)
+        cache.put('a.jpg', size, 1, image(10, 10))
+        cache.put('b.jpg', size, 1, image(10, 10))
+        cache.get('a.jpg', size, 1)
+
+        when:
+        cache.put('c.jpg', size, 1, image(10, 10))
+
+        then:
+        cache.get('a.jpg', size, 1) != null
+        cache.get('b.jpg', size, 1) == null
+        cache.get('c.jpg', size, 1) != null
+        cache.bytesHeld == 800
+        registry.counter('test_cache.evictions').count() == 1
+    }
+
+    def 'looks photos up by the orientation they were cached with, for as long as any scaling of them is cached'() {
+        setup:
+        // Holds two 10x10 images
+        def cache = new ScaledImageCache('test', 1000, metrics)
+        def small = new Dimension(10, 10)
+        def other = new Dimension(10, 5)
+        def rotated = image(10, 10)
+        cache.put('a.jpg', small, 6, rotated)
+        cache.put('a.jpg', other, 6, image(10, 5))
+
+        expect:
+        cache.get('a.jpg', small).is(rotated)
+        cache.get('b.jpg', small) == null
+
+        when:
+        cache.put('b.jpg', small, 1, image(10, 10))
+        cache.put('c.jpg', small, 1, image(10, 10))
+
+        then:
+        cache.get('a.jpg', small) == null
+        cache.get('a.jpg', other) == null
+        cache.get('c.jpg', small) != null
+    }
+
+    def 'checking again once the orientation is known does not count'() {
+        setup:
+        def cache = new ScaledImageCache('test', 1024 * 1024, metrics)
+        def size = new Dimension(10, 10)
+
+        when:
+        def first = cache.get('a.jpg', size)
+        def again = cache.peek('a.jpg', size, 6)
+        cache.put('a.jpg', size, 6, image(10, 10))
+        def found = cache.peek('a.jpg', size, 6)
+
+        then:
+        first == null
+        again == null
+        found != null
+        registry.counter('test_cache.misses').count() == 1
+        registry.counter('test_cache.hits').count() == 0
+    }
+
+    def 'ignores images bigger than the whole budget'() {
+        setup:
+        def cache = new ScaledImageCache('test', 1000, metrics)
+
+        when:
+        cache.put('huge.jpg', new Dimension(100, 100), 1, image(100, 100))
+
+        then:
+        cache.size() == 0
+        cache.bytesHeld == 0
+    }
+}
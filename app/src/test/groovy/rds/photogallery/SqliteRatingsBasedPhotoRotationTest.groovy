@@ -0,0 +1,219 @@
+package rds.photogallery
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.sqlite.SQLiteDataSource
+import spock.lang.Specification
+
+import java.sql.Connection
+import java.sql.SQLException
+
+class SqliteRatingsBasedPhotoRotationTest extends Specification {
+    def metrics = new Metrics(new SimpleMeterRegistry())
+    def dataSource = new SQLiteDataSource()
+
+    def setup() {
+        dataSource.url = 'jdbc:sqlite:' + new File(File.createTempDir(), 'photos.sqlite')
+        // Creates the tables
+        new RatingsIndex(dataSource, File.createTempDir().toString(), 1, metrics)
+    }
+
+    void photos(int rating, String cycle, List<String> paths) {
+        Connection conn = dataSource.getConnection()
+        def stmt = conn.prepareStatement(
+                'insert into photos (relative_path, rating, cycle, size, modified) values (?, ?, ?, 0, 0)')
+        paths.each {
+            stmt.setString(1, it)
+            stmt.setInt(2, rating)
+            stmt.setString(3, cycle)
+            stmt.execute()
+        }
+        conn.close()
+    }
+
+    Map<String, String> cycles() {
+        Connection conn = dataSource.getConnection()
+        def resultSet = conn.createStatement().executeQuery('select relative_path, cycle from photos')
+        def result = [:]
+        while (resultSet.next()) {
+            result[resultSet.getString(1)] = resultSet.getString(2)
+        }
+        conn.close()
+        result
+    }
+
+    def 'shows every photo of a rating once per cycle'() {
+        setup:
+        def paths = (1..10).collect { "${it}.jpg".toString() }
+        photos(3, 'none yet', paths)
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        when:
+        def firstCycle = (1..10).collect { rotation.next() }
+        def afterFirst = cycles()
+        def secondCycle = (1..10).collect { rotation.next() }
+
+        then:
+        firstCycle as Set == paths as Set
+        afterFirst.values() as Set == ['A'] as Set
+        secondCycle as Set == paths as Set
+        cycles().values() as Set == ['B'] as Set
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'turns a cycle over without dealing the shuffle keys again'() {
+        setup:
+        photos(3, 'none yet', (1..10).collect { "${it}.jpg".toString() })
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+        def keys = { ->
+            Connection conn = dataSource.getConnection()
+            def resultSet = conn.createStatement().executeQuery('select relative_path, shuffle_key from photos')
+            def result = [:]
+            while (resultSet.next()) {
+                result[resultSet.getString(1)] = resultSet.getLong(2)
+            }
+            conn.close()
+            result
+        }
+        def before = keys()
+
+        when:
+        rotation.next(10)
+        rotation.next(5)
+
+        then:
+        cycles().values().countBy { it } == ['A': 5, 'B': 5]
+        keys() == before
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'picks up the cycle where the db left it'() {
+        setup:
+        photos(3, 'A', ['shown1.jpg', 'shown2.jpg'])
+        photos(3, 'B', ['waiting.jpg'])
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        expect:
+        rotation.next() == 'waiting.jpg'
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'draws batches without repeating within a cycle'() {
+        setup:
+        def paths = (1..10).collect { "${it}.jpg".toString() }
+        photos(2, 'none yet', paths)
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        when:
+        def first = rotation.next(4)
+        def rest = rotation.next(6)
+
+        then:
+        (first + rest) as Set == paths as Set
+        // The counts kept up with the batches, so the next single draw knows the cycle is done
+        rotation.next() in paths
+        cycles().values().count { it == 'B' } == 1
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'a batch that turns a cycle over does not repeat the photos it already drew'() {
+        setup:
+        photos(3, 'A', ['shown1.jpg', 'shown2.jpg'])
+        photos(3, 'none yet', ['waiting.jpg'])
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        when:
+        def batch = rotation.next(3)
+
+        then:
+        batch.sort() == ['shown1.jpg', 'shown2.jpg', 'waiting.jpg']
+        // The one drawn before the cycle turned over is shown in the new one, too
+        cycles() == ['shown1.jpg': 'B', 'shown2.jpg': 'B', 'waiting.jpg': 'B']
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'a rating with too few photos for a batch gives its share to the others'() {
+        setup:
+        photos(5, 'none yet', ['top1.jpg', 'top2.jpg'])
+        def others = (1..10).collect { "${it}.jpg".toString() }
+        photos(0, 'none yet', others)
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        when:
+        def batch = rotation.next(8)
+
+        then:
+        batch.size() == 8
+        batch.unique(false).size() == 8
+        batch.containsAll(['top1.jpg', 'top2.jpg'])
+        !(SqliteRatingsBasedPhotoRotation.CYCLE_EXHAUSTED in batch)
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'pads a batch only when there are not enough photos for it'() {
+        setup:
+        photos(3, 'none yet', ['a.jpg', 'b.jpg', 'c.jpg'])
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+
+        when:
+        def batch = rotation.next(5)
+
+        then:
+        batch.findAll { it != SqliteRatingsBasedPhotoRotation.CYCLE_EXHAUSTED }.sort() == ['a.jpg', 'b.jpg', 'c.jpg']
+        batch.count { it == SqliteRatingsBasedPhotoRotation.CYCLE_EXHAUSTED } == 2
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'a draw that fails leaves the cycles as they were'() {
+        setup:
+        photos(3, 'none yet', ['a.jpg'])
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+        rotation.next()
+        // So the next draw fails when it turns the cycle over
+        Connection conn = dataSource.getConnection()
+        conn.createStatement().execute('drop table rating_cycles')
+        conn.close()
+
+        when:
+        rotation.next()
+
+        then:
+        thrown(SQLException)
+        rotation.currentCycleByRating[3] == 'A'
+        cycles() == ['a.jpg': 'A']
+
+        cleanup:
+        rotation.close()
+    }
+
+    def 'recovers when photos disappear out from under it'() {
+        setup:
+        photos(3, 'none yet', ['a.jpg', 'b.jpg'])
+        def rotation = new SqliteRatingsBasedPhotoRotation(dataSource, metrics)
+        Connection conn = dataSource.getConnection()
+        conn.createStatement().execute("delete from photos where relative_path = 'b.jpg'")
+        conn.close()
+
+        when:
+        def drawn = (1..4).collect { rotation.next() }
+
+        then:
+        drawn == ['a.jpg'] * 4
+
+        cleanup:
+        rotation.close()
+    }
+}